@@ -0,0 +1,212 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which received requests get matched. A request is turned away straight away when
+ * its client is over its rate (a token bucket per client) or when the bounded queue in front
+ * of the workers is full. It is also turned away, instead of matched, when it has waited in
+ * the queue longer than maxQueueWaitMillis; by then its client has usually given up, and
+ * matching it would only delay the requests behind it. Turned away requests are told when to
+ * retry, estimated from the queue depth and recent matching times.
+ */
+public class AdmissionControl {
+
+	/** A request waiting to be admitted. */
+	public interface Request {
+		/** Called on a worker thread once the request is admitted. */
+		void process();
+
+		/** Called when the request is turned away; may run on an I/O or worker thread. */
+		void reject(int retryAfterMillis);
+	}
+
+	/** Buckets tracked before idle ones are dropped. */
+	private static final int MAX_TRACKED_CLIENTS = 10000;
+	private static final int MIN_RETRY_MILLIS = 50;
+	private static final int MAX_RETRY_MILLIS = 30000;
+
+	private final ThreadPoolExecutor workers;
+	private final double clientRate;
+	private final double clientBurst;
+	private final long maxQueueWaitNanos;
+	private final ConcurrentHashMap<Object, TokenBucket> buckets = new ConcurrentHashMap<Object, TokenBucket>();
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rateLimited = new AtomicLong();
+	private final AtomicLong queueFull = new AtomicLong();
+	private final AtomicLong waitedTooLong = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	/** Moving average of how long processing one request takes. */
+	private volatile long serviceNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * @param workers runs admitted requests; its queue must be bounded and it must reject,
+	 *        not block or run the task itself, when the queue is full
+	 * @param clientRate sustained requests per second allowed per client
+	 * @param clientBurst requests a client may send at once after being idle
+	 */
+	public AdmissionControl(ThreadPoolExecutor workers, double clientRate, int clientBurst, long maxQueueWaitMillis) {
+		this.workers = workers;
+		this.clientRate = clientRate;
+		this.clientBurst = Math.max(1, clientBurst);
+		this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+	}
+
+	/**
+	 * Queues the request for a worker, or rejects it right away.
+	 *
+	 * @param client identifies the sender for rate limiting, e.g. its address
+	 * @return whether the request was queued
+	 */
+	public boolean submit(Object client, Request request) {
+		return submit(client, 1, request);
+	}
+
+	/**
+	 * Like {@link #submit(Object, Request)} for a request that counts as cost requests
+	 * against the client's rate, e.g. a batch.
+	 */
+	public boolean submit(Object client, int cost, final Request request) {
+		long now = System.nanoTime();
+		long wait = bucket(client, now).take(now, cost);
+		if(wait > 0) {
+			rateLimited.incrementAndGet();
+			request.reject(clamp(TimeUnit.NANOSECONDS.toMillis(wait)));
+			return false;
+		}
+		final long queued = now;
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					long start = System.nanoTime();
+					long waited = start - queued;
+					recordWait(waited);
+					if(waited > maxQueueWaitNanos) {
+						waitedTooLong.incrementAndGet();
+						request.reject(retryAfterMillis());
+						return;
+					}
+					admitted.incrementAndGet();
+					try {
+						request.process();
+					} finally {
+						long took = System.nanoTime() - start;
+						serviceNanos += (took - serviceNanos) / 16;
+					}
+				}
+			});
+			return true;
+		} catch(RejectedExecutionException e) {
+			queueFull.incrementAndGet();
+			request.reject(retryAfterMillis());
+			return false;
+		}
+	}
+
+	/** How long until the queue has drained enough to take another request. */
+	public int retryAfterMillis() {
+		long backlog = workers.getQueue().size() + 1;
+		long nanos = backlog * serviceNanos / Math.max(1, workers.getMaximumPoolSize());
+		return clamp(TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+
+	private static int clamp(long millis) {
+		return (int)Math.max(MIN_RETRY_MILLIS, Math.min(MAX_RETRY_MILLIS, millis));
+	}
+
+	private void recordWait(long nanos) {
+		totalWaitNanos.addAndGet(nanos);
+		long max;
+		while(nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos))
+			;
+	}
+
+	private TokenBucket bucket(Object client, long now) {
+		TokenBucket bucket = buckets.get(client);
+		if(bucket == null) {
+			if(buckets.size() >= MAX_TRACKED_CLIENTS)
+				dropIdleBuckets(now);
+			TokenBucket created = new TokenBucket(now);
+			bucket = buckets.putIfAbsent(client, created);
+			if(bucket == null)
+				bucket = created;
+		}
+		return bucket;
+	}
+
+	/** Forgets clients whose bucket has refilled; they'd get a full one back anyway. */
+	private void dropIdleBuckets(long now) {
+		Iterator<TokenBucket> it = buckets.values().iterator();
+		while(it.hasNext()) {
+			if(it.next().isFull(now))
+				it.remove();
+		}
+	}
+
+	public int getQueueDepth() {
+		return workers.getQueue().size();
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	public long getRejected() {
+		return rateLimited.get() + queueFull.get() + waitedTooLong.get();
+	}
+
+	/** Mean time requests spent in the queue, in milliseconds, whether admitted or not. */
+	public double getMeanWaitMillis() {
+		long count = admitted.get() + waitedTooLong.get();
+		return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Admission[queued=%d, admitted=%d, rate limited=%d, queue full=%d, waited too long=%d, wait mean=%.1fms max=%.1fms]",
+				getQueueDepth(), admitted.get(), rateLimited.get(), queueFull.get(), waitedTooLong.get(), getMeanWaitMillis(), getMaxWaitMillis());
+	}
+
+	private class TokenBucket {
+		private double tokens;
+		private long updated;
+
+		TokenBucket(long now) {
+			tokens = clientBurst;
+			updated = now;
+		}
+
+		/**
+		 * Takes cost tokens; returns 0, or the nanoseconds until one is available. A batch
+		 * larger than what is left leaves the bucket in debt rather than waiting forever.
+		 */
+		synchronized long take(long now, int cost) {
+			refill(now);
+			if(tokens >= 1) {
+				tokens -= cost;
+				return 0;
+			}
+			return (long)((1 - tokens) / clientRate * 1e9);
+		}
+
+		synchronized boolean isFull(long now) {
+			refill(now);
+			return tokens >= clientBurst;
+		}
+
+		private void refill(long now) {
+			tokens = Math.min(clientBurst, tokens + (now - updated) / 1e9 * clientRate);
+			updated = now;
+		}
+	}
+}
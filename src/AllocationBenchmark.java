@@ -0,0 +1,121 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Measures what the server's network path allocates per request: frames are sent over
+ * loopback to a {@link NioFrontEnd} whose handler answers every request with the request
+ * itself, like a match reply, and the bytes allocated by the I/O threads are read from the
+ * JVM's per-thread allocation counters.
+ * <pre>
+ * java AllocationBenchmark [requests] [connections]
+ * </pre>
+ */
+public class AllocationBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final int port = 19000 + new Random().nextInt(1000);
+		final NioFrontEnd frontEnd = new NioFrontEnd(port, 2, new NioFrontEnd.Handler() {
+			@Override
+			public void handle(NioFrontEnd.Connection connection, Protocol.Frame frame) {
+				try {
+					connection.send(Protocol.REPLY_MATCHED, frame.correlationId, Protocol.encode(Protocol.request(frame)));
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+
+			@Override
+			public void closed(NioFrontEnd.Connection connection) {
+			}
+		}, new BufferPool(16 * 1024, 64));
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					frontEnd.run();
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		acceptor.start();
+
+		// warm up, then measure
+		run(port, connections, requests / 10);
+		long before = ioThreadAllocations();
+		long start = System.nanoTime();
+		run(port, connections, requests);
+		long nanos = System.nanoTime() - start;
+		long allocated = ioThreadAllocations() - before;
+		frontEnd.close();
+
+		System.out.printf("%d requests over %d connections: %.0f requests/s%n", requests, connections, requests / (nanos / 1e9));
+		System.out.printf("I/O threads allocated %.1f bytes/request%n", (double)allocated / requests);
+	}
+
+	/** Sends requests, spread over connections, and waits for all replies. */
+	private static void run(final int port, int connections, final int requests) throws Exception {
+		Thread[] clients = new Thread[connections];
+		for(int c = 0; c < connections; c++) {
+			final int count = requests / connections;
+			clients[c] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						client(port, count);
+					} catch(Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			clients[c].start();
+		}
+		for(Thread client : clients)
+			client.join();
+	}
+
+	private static void client(int port, final int count) throws Exception {
+		final Socket socket = new Socket("127.0.0.1", port);
+		socket.setTcpNoDelay(true);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		final byte[] payload = Protocol.encode(new ParamData(1L, 0, 10, 3857, 29000000L,
+				new double[] {-13046000, 3860000, -13040000, 3855000}));
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for(int i = 1; i <= count; i++)
+						Protocol.write(out, Protocol.REGISTER, i, payload);
+					out.flush();
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		writer.start();
+		for(int i = 0; i < count; i++) {
+			if(Protocol.read(in) == null)
+				throw new IllegalStateException("Connection closed after " + i + " replies");
+		}
+		writer.join();
+		socket.close();
+	}
+
+	private static long ioThreadAllocations() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for(Thread t : Thread.getAllStackTraces().keySet()) {
+			if(t.getName().startsWith("network-io-"))
+				total += threads.getThreadAllocatedBytes(t.getId());
+		}
+		return total;
+	}
+}
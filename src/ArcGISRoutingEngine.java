@@ -0,0 +1,96 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.Polyline;
+import com.esri.core.geometry.SpatialReference;
+import com.esri.core.map.Graphic;
+import com.esri.core.tasks.na.NAFeaturesAsFeature;
+import com.esri.core.tasks.na.Route;
+import com.esri.core.tasks.na.RouteParameters;
+import com.esri.core.tasks.na.RouteResult;
+import com.esri.core.tasks.na.RouteTask;
+
+/** Routes through an online ArcGIS network analysis service. */
+public class ArcGISRoutingEngine implements RoutingEngine {
+
+	private final RouteTask task;
+
+	public ArcGISRoutingEngine(String url) throws Exception {
+		task = RouteTask.createOnlineRouteTask(url, null);
+	}
+
+	@Override
+	public RouteSolution solve(Point[] stops, SpatialReference sRef) throws Exception {
+		NAFeaturesAsFeature features = new NAFeaturesAsFeature();
+		for(Point stop : stops)
+			features.addFeature(new Graphic(stop, null));
+		RouteResult result = task.solve(buildParams(features, sRef));
+		if(result.getRoutes() == null || result.getRoutes().isEmpty())
+			return RouteSolution.UNREACHABLE;
+		return toSolution(result.getRoutes().get(0));
+	}
+
+	/**
+	 * Solves all routes in one request: each route's stops are tagged with their own
+	 * RouteName, so the service returns one route per name.
+	 */
+	@Override
+	public RouteSolution[] solveAll(List<Point[]> routes, SpatialReference sRef) throws Exception {
+		RouteSolution[] solutions = new RouteSolution[routes.size()];
+		if(routes.size() == 1) {
+			solutions[0] = solve(routes.get(0), sRef);
+			return solutions;
+		}
+		Map<String, Integer> names = new HashMap<String, Integer>();
+		NAFeaturesAsFeature features = new NAFeaturesAsFeature();
+		for(int i = 0; i < routes.size(); i++) {
+			String name = "route" + i;
+			names.put(name, Integer.valueOf(i));
+			for(Point stop : routes.get(i)) {
+				Map<String, Object> attributes = new HashMap<String, Object>();
+				attributes.put("RouteName", name);
+				features.addFeature(new Graphic(stop, null, attributes));
+			}
+		}
+		RouteResult result = task.solve(buildParams(features, sRef));
+		if(result.getRoutes() != null) {
+			for(Route route : result.getRoutes()) {
+				Integer i = names.get(route.getRouteName());
+				if(i != null)
+					solutions[i.intValue()] = toSolution(route);
+			}
+		}
+		// a sequence the service could not route never matches
+		for(int i = 0; i < solutions.length; i++) {
+			if(solutions[i] == null)
+				solutions[i] = RouteSolution.UNREACHABLE;
+		}
+		return solutions;
+	}
+
+	/** The service is asked for the legs as routes, all in one request. */
+	@Override
+	public double[] legMinutes(List<Point[]> legs, SpatialReference sRef) throws Exception {
+		RouteSolution[] solved = solveAll(legs, sRef);
+		double[] minutes = new double[solved.length];
+		for(int i = 0; i < solved.length; i++)
+			minutes[i] = solved[i].getMinutes();
+		return minutes;
+	}
+
+	private RouteParameters buildParams(NAFeaturesAsFeature stops, SpatialReference sRef) throws Exception {
+		RouteParameters parameters = task.retrieveDefaultRouteTaskParameters();
+	    parameters.setOutSpatialReference(sRef);
+	    stops.setSpatialReference(sRef);
+	    parameters.setStops(stops);
+	    parameters.setFindBestSequence(false);
+		return parameters;
+	}
+
+	private static RouteSolution toSolution(Route route) {
+		Polyline geometry = route.getRouteGraphic() == null ? null : (Polyline)route.getRouteGraphic().getGeometry();
+		return new RouteSolution(route.getTotalMinutes(), geometry);
+	}
+}
@@ -0,0 +1,23 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the delay before retry n is drawn uniformly from
+ * [0, min(maxMillis, baseMillis * 2^n)], so clients that failed together don't all come back
+ * at the same moment.
+ */
+public class Backoff {
+
+	private final long baseMillis;
+	private final long maxMillis;
+
+	public Backoff(long baseMillis, long maxMillis) {
+		this.baseMillis = baseMillis;
+		this.maxMillis = maxMillis;
+	}
+
+	/** Delay before retry attempt (0 for the first retry). */
+	public long delayMillis(int attempt) {
+		long cap = attempt >= 30 ? maxMillis : Math.min(maxMillis, baseMillis << attempt);
+		return ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+}
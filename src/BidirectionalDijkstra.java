@@ -0,0 +1,182 @@
+import java.util.Arrays;
+
+/**
+ * Dijkstra run from both ends at once: forward from the source over outgoing edges and
+ * backward from the target over incoming edges, stopping once the two frontiers together
+ * can't improve on the best path through a node reached by both.
+ */
+public class BidirectionalDijkstra implements PathFinder {
+
+	private final RoadGraph graph;
+	private final ThreadLocal<Search> searches = new ThreadLocal<Search>() {
+		@Override
+		protected Search initialValue() {
+			return new Search(graph.nodeCount());
+		}
+	};
+
+	public BidirectionalDijkstra(RoadGraph graph) {
+		this.graph = graph;
+	}
+
+	@Override
+	public double travelTime(int from, int to) {
+		Search search = searches.get();
+		search.run(graph, from, to);
+		return search.best;
+	}
+
+	@Override
+	public int[] path(int from, int to) {
+		Search search = searches.get();
+		search.run(graph, from, to);
+		if(search.meet < 0)
+			return null;
+		int length = 0;
+		for(int n = search.meet; n >= 0; n = search.forward.parent(n))
+			length++;
+		for(int n = search.backward.parent(search.meet); n >= 0; n = search.backward.parent(n))
+			length++;
+		int[] path = new int[length];
+		int i = 0;
+		for(int n = search.meet; n >= 0; n = search.forward.parent(n))
+			path[i++] = n;
+		// forward part was collected target-first
+		for(int a = 0, b = i - 1; a < b; a++, b--) {
+			int t = path[a];
+			path[a] = path[b];
+			path[b] = t;
+		}
+		for(int n = search.backward.parent(search.meet); n >= 0; n = search.backward.parent(n))
+			path[i++] = n;
+		return path;
+	}
+
+	/** One Dijkstra from the hub, over incoming edges when inbound, until it has settled every other node. */
+	@Override
+	public double[] travelTimes(int hub, int[] others, boolean outbound) {
+		int[] wanted = others.clone();
+		Arrays.sort(wanted);
+		int left = 0;
+		for(int i = 0; i < wanted.length; i++) {
+			if(i == 0 || wanted[i] != wanted[i - 1])
+				left++;
+		}
+		Labels labels = searches.get().forward;
+		labels.reset();
+		labels.reach(hub, 0, -1);
+		while(left > 0 && !labels.heap.isEmpty()) {
+			double d = labels.heap.peekKey();
+			int u = labels.heap.pop();
+			if(d > labels.distance(u))
+				continue;
+			if(Arrays.binarySearch(wanted, u) >= 0)
+				left--;
+			int start = outbound ? graph.outStart(u) : graph.inStart(u);
+			int end = outbound ? graph.outEnd(u) : graph.inEnd(u);
+			for(int e = start; e < end; e++) {
+				int v = outbound ? graph.outTo(e) : graph.inFrom(e);
+				double dv = d + (outbound ? graph.outTime(e) : graph.inTime(e));
+				if(dv < labels.distance(v))
+					labels.reach(v, dv, u);
+			}
+		}
+		double[] times = new double[others.length];
+		for(int i = 0; i < others.length; i++)
+			times[i] = labels.distance(others[i]);
+		return times;
+	}
+
+	/** Per-thread search state, reused between queries. */
+	private static class Search {
+		final Labels forward, backward;
+		double best;
+		int meet;
+
+		Search(int nodeCount) {
+			forward = new Labels(nodeCount);
+			backward = new Labels(nodeCount);
+		}
+
+		void run(RoadGraph graph, int source, int target) {
+			forward.reset();
+			backward.reset();
+			best = Double.POSITIVE_INFINITY;
+			meet = -1;
+			forward.reach(source, 0, -1);
+			backward.reach(target, 0, -1);
+			if(source == target) {
+				best = 0;
+				meet = source;
+				return;
+			}
+			while(!forward.heap.isEmpty() || !backward.heap.isEmpty()) {
+				double topF = forward.heap.peekKey(), topB = backward.heap.peekKey();
+				if(topF + topB >= best)
+					return;
+				if(topF <= topB) {
+					int u = forward.heap.pop();
+					if(topF > forward.distance(u))
+						continue;
+					for(int e = graph.outStart(u); e < graph.outEnd(u); e++)
+						relax(forward, backward, u, graph.outTo(e), topF + graph.outTime(e));
+				} else {
+					int u = backward.heap.pop();
+					if(topB > backward.distance(u))
+						continue;
+					for(int e = graph.inStart(u); e < graph.inEnd(u); e++)
+						relax(backward, forward, u, graph.inFrom(e), topB + graph.inTime(e));
+				}
+			}
+		}
+
+		private void relax(Labels side, Labels other, int u, int v, double d) {
+			if(d >= side.distance(v))
+				return;
+			side.reach(v, d, u);
+			double through = d + other.distance(v);
+			if(through < best) {
+				best = through;
+				meet = v;
+			}
+		}
+	}
+
+	/**
+	 * Distances and parents of one search direction. A node's label only counts when its
+	 * stamp matches the current query, so nothing has to be cleared between queries.
+	 */
+	static class Labels {
+		final double[] distance;
+		final int[] parent;
+		final int[] stamp;
+		final NodeHeap heap = new NodeHeap();
+		int query;
+
+		Labels(int nodeCount) {
+			distance = new double[nodeCount];
+			parent = new int[nodeCount];
+			stamp = new int[nodeCount];
+		}
+
+		void reset() {
+			query++;
+			heap.clear();
+		}
+
+		double distance(int n) {
+			return stamp[n] == query ? distance[n] : Double.POSITIVE_INFINITY;
+		}
+
+		int parent(int n) {
+			return stamp[n] == query ? parent[n] : -1;
+		}
+
+		void reach(int n, double d, int from) {
+			stamp[n] = query;
+			distance[n] = d;
+			parent[n] = from;
+			heap.push(d, n);
+		}
+	}
+}
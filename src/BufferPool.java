@@ -0,0 +1,38 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers of one size, handed out and taken back by the network threads. Buffers
+ * beyond maxPooled are left to the garbage collector when released.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/** A cleared buffer of bufferSize bytes. */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if(buffer != null) {
+			pooled.decrementAndGet();
+			return buffer;
+		}
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	public void release(ByteBuffer buffer) {
+		if(buffer.capacity() != bufferSize || pooled.get() >= maxPooled)
+			return;
+		buffer.clear();
+		pooled.incrementAndGet();
+		free.offer(buffer);
+	}
+}
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.SpatialReference;
+
+/**
+ * Puts a {@link RouteCache} in front of another engine, and a second one, of minutes only, in
+ * front of its legs. Routes that could not be found are not cached: a service that failed to
+ * route them may well route them on the next try.
+ */
+public class CachingRoutingEngine implements RoutingEngine {
+
+	private final RoutingEngine engine;
+	private final RouteCache<RouteSolution> cache;
+	private final RouteCache<Double> legCache;
+
+	public CachingRoutingEngine(RoutingEngine engine, RouteCache<RouteSolution> cache, RouteCache<Double> legCache) {
+		this.engine = engine;
+		this.cache = cache;
+		this.legCache = legCache;
+	}
+
+	@Override
+	public RouteSolution solve(Point[] stops, SpatialReference sRef) throws Exception {
+		RouteCache.Key key = cache.key(stops, sRef);
+		RouteSolution solution = cache.get(key);
+		if(solution == null) {
+			solution = engine.solve(stops, sRef);
+			if(isReachable(solution.getMinutes()))
+				cache.put(key, solution);
+		}
+		return solution;
+	}
+
+	/** Only the routes missing from the cache are passed on, in a single call. */
+	@Override
+	public RouteSolution[] solveAll(List<Point[]> routes, SpatialReference sRef) throws Exception {
+		RouteSolution[] solutions = new RouteSolution[routes.size()];
+		List<RouteCache.Key> keys = new ArrayList<RouteCache.Key>(routes.size());
+		List<Point[]> missing = new ArrayList<Point[]>();
+		List<Integer> missingAt = new ArrayList<Integer>();
+		for(int i = 0; i < routes.size(); i++) {
+			RouteCache.Key key = cache.key(routes.get(i), sRef);
+			keys.add(key);
+			solutions[i] = cache.get(key);
+			if(solutions[i] == null) {
+				missing.add(routes.get(i));
+				missingAt.add(Integer.valueOf(i));
+			}
+		}
+		if(missing.isEmpty())
+			return solutions;
+		RouteSolution[] solved = engine.solveAll(missing, sRef);
+		for(int j = 0; j < solved.length; j++) {
+			int i = missingAt.get(j).intValue();
+			solutions[i] = solved[j];
+			if(isReachable(solved[j].getMinutes()))
+				cache.put(keys.get(i), solved[j]);
+		}
+		return solutions;
+	}
+
+	/** Only the legs missing from the leg cache are passed on, in a single call. */
+	@Override
+	public double[] legMinutes(List<Point[]> legs, SpatialReference sRef) throws Exception {
+		double[] minutes = new double[legs.size()];
+		List<RouteCache.Key> keys = new ArrayList<RouteCache.Key>(legs.size());
+		List<Point[]> missing = new ArrayList<Point[]>();
+		List<Integer> missingAt = new ArrayList<Integer>();
+		for(int i = 0; i < legs.size(); i++) {
+			RouteCache.Key key = legCache.key(legs.get(i), sRef);
+			keys.add(key);
+			Double cached = legCache.get(key);
+			if(cached != null) {
+				minutes[i] = cached.doubleValue();
+			} else {
+				missing.add(legs.get(i));
+				missingAt.add(Integer.valueOf(i));
+			}
+		}
+		if(missing.isEmpty())
+			return minutes;
+		double[] solved = engine.legMinutes(missing, sRef);
+		for(int j = 0; j < solved.length; j++) {
+			int i = missingAt.get(j).intValue();
+			minutes[i] = solved[j];
+			if(isReachable(solved[j]))
+				legCache.put(keys.get(i), Double.valueOf(solved[j]));
+		}
+		return minutes;
+	}
+
+	private static boolean isReachable(double minutes) {
+		return !Double.isInfinite(minutes);
+	}
+}
@@ -0,0 +1,165 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Feasible driver-rider pairs among pooled requests, with the detour each pair costs the
+ * driver. A request's edges are found when it is pooled, by solving it against the pooled
+ * requests near it, and kept until either end leaves the pool. A driver who takes a rider
+ * leaves it and comes back with edges priced for the new itinerary, so no edge outlives the
+ * itinerary it was priced for. Adding or removing a request only touches the requests it has
+ * edges to, not the rest of the pool.
+ * <p>
+ * Safe for concurrent use without a graph-wide lock: each request's edges are guarded by its
+ * own node, and linking a pair locks just its two ends.
+ * <p>
+ * An arrival is not in the graph yet; it is priced against its neighbourhood in the pool.
+ * The graph is what batch mode assigns from, and what a claimed request that couldn't be
+ * seated goes back to the pool with.
+ */
+public class CandidateGraph {
+
+	/** A driver that can take a rider, and what it costs them. */
+	public static final class Edge {
+		public final ParamData driver;
+		public final ParamData rider;
+		/** Extra minutes the driver spends on the rider. */
+		public final double detour;
+		/** The driver's itinerary with the rider aboard; its route is solved on a match. */
+		public final Itinerary plan;
+
+		public Edge(ParamData driver, ParamData rider, double detour, Itinerary plan) {
+			this.driver = driver;
+			this.rider = rider;
+			this.detour = detour;
+			this.plan = plan;
+		}
+
+		/** The end of the edge that isn't data. */
+		public ParamData other(ParamData data) {
+			return data == driver ? rider : driver;
+		}
+	}
+
+	public static final Comparator<Edge> BY_DETOUR = new Comparator<Edge>() {
+		@Override
+		public int compare(Edge a, Edge b) {
+			return Double.compare(a.detour, b.detour);
+		}
+	};
+
+	// pooled requests by ID, each with its edges by the other end's ID
+	private final ConcurrentHashMap<Long, Node> nodes = new ConcurrentHashMap<Long, Node>();
+	// each edge is kept at both ends; counted per end, so that whoever drops an end counts it
+	private final AtomicInteger halfEdges = new AtomicInteger();
+
+	/**
+	 * Adds a pooled request with its edges. Edges to requests that are not in the graph,
+	 * e.g. because they were claimed in the meantime, are left out. Returns false, and adds
+	 * nothing, when a request with the same ID is in the graph already.
+	 */
+	public boolean add(ParamData data, Collection<Edge> edges) {
+		Long id = Long.valueOf(data.getRequestId());
+		Node node = new Node(data);
+		if(nodes.putIfAbsent(id, node) != null)
+			return false;
+		for(Edge edge : edges) {
+			ParamData other = edge.other(data);
+			Node neighbour = nodes.get(Long.valueOf(other.getRequestId()));
+			if(neighbour == null || neighbour.data != other)
+				continue;
+			// both ends locked in ID order, so two adds linking the same pair can't deadlock
+			Node first = id.longValue() < other.getRequestId() ? node : neighbour;
+			Node second = first == node ? neighbour : node;
+			synchronized(first) {
+				synchronized(second) {
+					if(node.removed || neighbour.removed)
+						continue;
+					if(node.edges.put(Long.valueOf(other.getRequestId()), edge) == null)
+						halfEdges.incrementAndGet();
+					if(neighbour.edges.put(id, edge) == null)
+						halfEdges.incrementAndGet();
+				}
+			}
+		}
+		return true;
+	}
+
+	/** Removes a request that left the pool, and its edges. */
+	public void remove(ParamData data) {
+		Long id = Long.valueOf(data.getRequestId());
+		Node node = nodes.get(id);
+		if(node == null || node.data != data || !nodes.remove(id, node))
+			return;
+		List<Edge> edges;
+		synchronized(node) {
+			node.removed = true;
+			edges = new ArrayList<Edge>(node.edges.values());
+			node.edges.clear();
+		}
+		halfEdges.addAndGet(-edges.size());
+		for(Edge edge : edges) {
+			Node neighbour = nodes.get(Long.valueOf(edge.other(data).getRequestId()));
+			if(neighbour == null)
+				continue;
+			synchronized(neighbour) {
+				if(neighbour.edges.get(id) == edge) {
+					neighbour.edges.remove(id);
+					halfEdges.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	/** The request's edges, cheapest first; empty when it isn't in the graph. */
+	public List<Edge> candidates(ParamData data) {
+		Node node = nodes.get(Long.valueOf(data.getRequestId()));
+		if(node == null || node.data != data)
+			return Collections.emptyList();
+		List<Edge> edges;
+		synchronized(node) {
+			edges = new ArrayList<Edge>(node.edges.values());
+		}
+		Collections.sort(edges, BY_DETOUR);
+		return edges;
+	}
+
+	/** All edges, each once. Requests added or removed meanwhile may or may not be seen. */
+	public List<Edge> edges() {
+		List<Edge> edges = new ArrayList<Edge>(halfEdges.get() / 2);
+		for(Node node : nodes.values()) {
+			if(node.data.getClientType() != 0)
+				continue;
+			synchronized(node) {
+				edges.addAll(node.edges.values());
+			}
+		}
+		return edges;
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	@Override
+	public String toString() {
+		return "CandidateGraph[requests=" + nodes.size() + ", edges=" + halfEdges.get() / 2 + "]";
+	}
+
+	private static class Node {
+		final ParamData data;
+		// guarded by the node
+		final Map<Long, Edge> edges = new HashMap<Long, Edge>();
+		boolean removed;
+
+		Node(ParamData data) {
+			this.data = data;
+		}
+	}
+}
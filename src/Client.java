@@ -37,6 +37,7 @@ import com.esri.toolkit.overlays.DrawingOverlay.DrawingMode;
 import com.esri.core.geometry.Envelope;
 import com.esri.core.geometry.SpatialReference;
 import com.esri.core.map.Graphic;
+import com.esri.core.symbol.SimpleLineSymbol;
 import com.esri.core.symbol.SimpleMarkerSymbol;
 import com.esri.core.symbol.TextSymbol;
 import com.esri.core.symbol.SimpleMarkerSymbol.Style;
@@ -73,6 +74,7 @@ public class Client {
   private int n;
   private int time;
   private String setoutTime;
+  private InfoSend sendObj = new InfoSend();
 
   
   private boolean preserveOrder = false;
@@ -85,6 +87,20 @@ public class Client {
 	n = option;
 	time = waitTime;
 	setoutTime = passtime;
+	sendObj.setMatchListener(new InfoSend.MatchListener() {
+      @Override
+      public void matched(long requestId, final MatchReply match) {
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            showRoute(match);
+            JOptionPane.showMessageDialog(contentPane, n == 0
+                ? "Good news! A rider has been found for your trip."
+                : "Good news! A driver has been found for your trip.");
+          }
+        });
+      }
+    });
   }
 
   // ------------------------------------------------------------------------
@@ -95,8 +111,8 @@ public class Client {
     try {
       sparticalReferencePass = map.getSpatialReference();
       ParamData params = new ParamData(graphArray, n, time, sparticalReferencePass,setoutTime);
-      InfoSend sendObj = new InfoSend();
-      sendObj.sendParams("172.20.10.4", 1543, params);
+      MatchReply reply = sendObj.sendParams("172.20.10.4", 1543, params);
+      showReply(reply);
     } catch (Exception e) {
       e.printStackTrace();
       JOptionPane.showMessageDialog(contentPane,
@@ -365,6 +381,33 @@ public class Client {
     return contentPane;
   }
   
+  private void showReply(MatchReply reply) {
+    switch (reply.getStatus()) {
+      case MATCHED:
+        showRoute(reply);
+        JOptionPane.showMessageDialog(contentPane, n == 0
+            ? "Thank you! A rider can ride your car!"
+            : "Great! A driver is able to share ride with you!");
+        break;
+      case POOLED:
+        JOptionPane.showMessageDialog(contentPane, "No match yet! But you'll be notified when there's a match.");
+        break;
+      case BUSY:
+        JOptionPane.showMessageDialog(contentPane, "The server is busy. Please try again in "
+            + Math.max(1, (reply.getRetryAfterMillis() + 999) / 1000) + " second(s).");
+        break;
+      default:
+        JOptionPane.showMessageDialog(contentPane,
+            wrap("An error has occured. " + reply.getMessage()), "", JOptionPane.WARNING_MESSAGE);
+    }
+  }
+
+  /** Draws the shared route sent with a match, if any. */
+  private void showRoute(MatchReply match) {
+    if (match.getRoute() != null && graphicsLayer != null)
+      graphicsLayer.addGraphic(new Graphic(match.getRoute(), new SimpleLineSymbol(Color.BLUE, 4.0f)));
+  }
+
   private String wrap(String str) {
     // create a HTML string that wraps text when longer
     return "<html><p style='width:200px;'>" + str + "</html>";
@@ -0,0 +1,519 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Contraction hierarchy over a {@link RoadGraph}. Preprocessing removes ("contracts") nodes
+ * one at a time, least important first, adding a shortcut edge wherever the removed node was
+ * on the only fastest path between two of its neighbours. A query then only has to search
+ * upwards, to more important nodes, from both ends, which settles a few hundred nodes
+ * instead of a large part of the city.
+ * <p>
+ * Build it offline and save it next to the graph:
+ * <pre>
+ * java ContractionHierarchy roads.graph roads.ch
+ * </pre>
+ */
+public class ContractionHierarchy implements PathFinder {
+
+	private static final int MAGIC = 0x53524332; // "SRC2", with the graph's checksum
+	/** Nodes settled by one witness search before giving up and adding the shortcut. */
+	private static final int WITNESS_SETTLE_LIMIT = 500;
+
+	// up: edges from n to more important nodes, upStart[n] .. upStart[n + 1] - 1
+	private final int[] upStart, upTo, upMiddle;
+	private final double[] upTime;
+	// down: edges into n from more important nodes, for the search from the target
+	private final int[] downStart, downFrom, downMiddle;
+	private final double[] downTime;
+	private final long graphChecksum;
+	private final ThreadLocal<Search> searches = new ThreadLocal<Search>() {
+		@Override
+		protected Search initialValue() {
+			return new Search(upStart.length - 1);
+		}
+	};
+
+	private ContractionHierarchy(long graphChecksum, int[] upStart, int[] upTo, double[] upTime,
+			int[] upMiddle, int[] downStart, int[] downFrom, double[] downTime, int[] downMiddle) {
+		this.graphChecksum = graphChecksum;
+		this.upStart = upStart;
+		this.upTo = upTo;
+		this.upTime = upTime;
+		this.upMiddle = upMiddle;
+		this.downStart = downStart;
+		this.downFrom = downFrom;
+		this.downTime = downTime;
+		this.downMiddle = downMiddle;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length != 2) {
+			System.out.println("Usage: java ContractionHierarchy <road graph file> <output file>");
+			return;
+		}
+		RoadGraph graph = RoadGraph.load(new File(args[0]));
+		long start = System.currentTimeMillis();
+		ContractionHierarchy ch = build(graph);
+		System.out.println("Contracted " + graph.nodeCount() + " nodes in " + (System.currentTimeMillis() - start)
+				+ " ms, " + (ch.upTo.length + ch.downFrom.length) + " edges incl. shortcuts.");
+		ch.save(new File(args[1]));
+	}
+
+	/**
+	 * Whether this hierarchy was built from the given graph, down to its travel times; one
+	 * built before the times changed would answer with the old ones.
+	 */
+	public boolean matches(RoadGraph graph) {
+		return graph.checksum() == graphChecksum;
+	}
+
+	// ------------------------------------------------------------------------
+	// Queries
+	// ------------------------------------------------------------------------
+
+	@Override
+	public double travelTime(int from, int to) {
+		Search search = searches.get();
+		search.run(from, to);
+		return search.best;
+	}
+
+	@Override
+	public int[] path(int from, int to) {
+		Search search = searches.get();
+		search.run(from, to);
+		if(search.meet < 0)
+			return null;
+		List<Integer> nodes = new ArrayList<Integer>();
+		// forward half, collected from the meeting node back to the source
+		List<int[]> upEdges = new ArrayList<int[]>();
+		for(int n = search.meet; search.forward.parent(n) >= 0; n = search.forward.parent(n))
+			upEdges.add(new int[] {search.forward.parent(n), n});
+		nodes.add(Integer.valueOf(from));
+		for(int i = upEdges.size() - 1; i >= 0; i--)
+			unpack(upEdges.get(i)[0], upEdges.get(i)[1], nodes);
+		for(int n = search.meet; search.backward.parent(n) >= 0; n = search.backward.parent(n))
+			unpack(n, search.backward.parent(n), nodes);
+		int[] path = new int[nodes.size()];
+		for(int i = 0; i < path.length; i++)
+			path[i] = nodes.get(i).intValue();
+		return path;
+	}
+
+	/**
+	 * The upward search from the hub is run to the end once; each other node then only needs
+	 * its own upward search, which meets the hub's labels.
+	 */
+	@Override
+	public double[] travelTimes(int hub, int[] others, boolean outbound) {
+		Search search = searches.get();
+		BidirectionalDijkstra.Labels fromHub = outbound ? search.forward : search.backward;
+		BidirectionalDijkstra.Labels toHub = outbound ? search.backward : search.forward;
+		fromHub.reset();
+		fromHub.reach(hub, 0, -1);
+		while(!fromHub.heap.isEmpty()) {
+			double d = fromHub.heap.peekKey();
+			int u = fromHub.heap.pop();
+			if(d <= fromHub.distance(u))
+				search.expand(fromHub, outbound, u, d);
+		}
+		double[] times = new double[others.length];
+		for(int i = 0; i < others.length; i++) {
+			toHub.reset();
+			toHub.reach(others[i], 0, -1);
+			double best = Double.POSITIVE_INFINITY;
+			while(!toHub.heap.isEmpty() && toHub.heap.peekKey() < best) {
+				double d = toHub.heap.peekKey();
+				int u = toHub.heap.pop();
+				if(d > toHub.distance(u))
+					continue;
+				best = Math.min(best, d + fromHub.distance(u));
+				search.expand(toHub, !outbound, u, d);
+			}
+			times[i] = best;
+		}
+		return times;
+	}
+
+	/** Appends the original nodes of the fastest hierarchy edge a to b, a excluded. */
+	private void unpack(int a, int b, List<Integer> nodes) {
+		int middle = middle(a, b);
+		if(middle < 0) {
+			nodes.add(Integer.valueOf(b));
+			return;
+		}
+		unpack(a, middle, nodes);
+		unpack(middle, b, nodes);
+	}
+
+	/** Node a shortcut a to b skips, -1 for an original edge. */
+	private int middle(int a, int b) {
+		double best = Double.POSITIVE_INFINITY;
+		int middle = -1;
+		for(int e = upStart[a]; e < upStart[a + 1]; e++) {
+			if(upTo[e] == b && upTime[e] < best) {
+				best = upTime[e];
+				middle = upMiddle[e];
+			}
+		}
+		for(int e = downStart[b]; e < downStart[b + 1]; e++) {
+			if(downFrom[e] == a && downTime[e] < best) {
+				best = downTime[e];
+				middle = downMiddle[e];
+			}
+		}
+		return middle;
+	}
+
+	/** Per-thread query state: one upward search from each end. */
+	private class Search {
+		final BidirectionalDijkstra.Labels forward, backward;
+		double best;
+		int meet;
+
+		Search(int nodeCount) {
+			forward = new BidirectionalDijkstra.Labels(nodeCount);
+			backward = new BidirectionalDijkstra.Labels(nodeCount);
+		}
+
+		void run(int source, int target) {
+			forward.reset();
+			backward.reset();
+			best = Double.POSITIVE_INFINITY;
+			meet = -1;
+			forward.reach(source, 0, -1);
+			backward.reach(target, 0, -1);
+			// upward searches don't meet in order, so each side runs until it can't improve
+			while(true) {
+				double topF = forward.heap.peekKey(), topB = backward.heap.peekKey();
+				boolean doForward = topF < best, doBackward = topB < best;
+				if(!doForward && !doBackward)
+					return;
+				if(doForward && (!doBackward || topF <= topB)) {
+					int u = forward.heap.pop();
+					if(topF > forward.distance(u))
+						continue;
+					meetAt(u, topF + backward.distance(u));
+					for(int e = upStart[u]; e < upStart[u + 1]; e++) {
+						double d = topF + upTime[e];
+						if(d < forward.distance(upTo[e]))
+							forward.reach(upTo[e], d, u);
+					}
+				} else {
+					int u = backward.heap.pop();
+					if(topB > backward.distance(u))
+						continue;
+					meetAt(u, topB + forward.distance(u));
+					for(int e = downStart[u]; e < downStart[u + 1]; e++) {
+						double d = topB + downTime[e];
+						if(d < backward.distance(downFrom[e]))
+							backward.reach(downFrom[e], d, u);
+					}
+				}
+			}
+		}
+
+		/** Relaxes the edges of u at distance d, over up edges for a forward search. */
+		void expand(BidirectionalDijkstra.Labels side, boolean forwardSearch, int u, double d) {
+			if(forwardSearch) {
+				for(int e = upStart[u]; e < upStart[u + 1]; e++) {
+					if(d + upTime[e] < side.distance(upTo[e]))
+						side.reach(upTo[e], d + upTime[e], u);
+				}
+			} else {
+				for(int e = downStart[u]; e < downStart[u + 1]; e++) {
+					if(d + downTime[e] < side.distance(downFrom[e]))
+						side.reach(downFrom[e], d + downTime[e], u);
+				}
+			}
+		}
+
+		private void meetAt(int node, double through) {
+			if(through < best) {
+				best = through;
+				meet = node;
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// Preprocessing
+	// ------------------------------------------------------------------------
+
+	/** Contracts every node of the graph. Takes seconds to minutes for a city. */
+	public static ContractionHierarchy build(RoadGraph graph) {
+		return new Builder(graph).build();
+	}
+
+	/** Edge of the graph being contracted. */
+	private static class WorkEdge {
+		final int node;
+		double time;
+		int middle;
+
+		WorkEdge(int node, double time, int middle) {
+			this.node = node;
+			this.time = time;
+			this.middle = middle;
+		}
+	}
+
+	private static class Builder {
+		final int n;
+		final List<List<WorkEdge>> out = new ArrayList<List<WorkEdge>>();
+		final List<List<WorkEdge>> in = new ArrayList<List<WorkEdge>>();
+		final boolean[] contracted;
+		final int[] rank;
+		final int[] contractedNeighbours;
+		final BidirectionalDijkstra.Labels witness;
+		final RoadGraph graph;
+
+		Builder(RoadGraph graph) {
+			this.graph = graph;
+			n = graph.nodeCount();
+			contracted = new boolean[n];
+			rank = new int[n];
+			contractedNeighbours = new int[n];
+			witness = new BidirectionalDijkstra.Labels(n);
+			for(int i = 0; i < n; i++) {
+				out.add(new ArrayList<WorkEdge>());
+				in.add(new ArrayList<WorkEdge>());
+			}
+			for(int u = 0; u < n; u++) {
+				for(int e = graph.outStart(u); e < graph.outEnd(u); e++) {
+					int v = graph.outTo(e);
+					if(v != u)
+						addEdge(u, v, graph.outTime(e), -1);
+				}
+			}
+		}
+
+		ContractionHierarchy build() {
+			PriorityQueue<double[]> queue = new PriorityQueue<double[]>(Math.max(1, n), new Comparator<double[]>() {
+				@Override
+				public int compare(double[] a, double[] b) {
+					return Double.compare(a[0], b[0]);
+				}
+			});
+			for(int v = 0; v < n; v++)
+				queue.add(new double[] {priority(v), v});
+			int order = 0;
+			while(!queue.isEmpty()) {
+				double[] top = queue.poll();
+				int v = (int)top[1];
+				// priorities go stale as neighbours are contracted; re-check lazily
+				double current = priority(v);
+				if(!queue.isEmpty() && current > queue.peek()[0]) {
+					queue.add(new double[] {current, v});
+					continue;
+				}
+				contract(v);
+				rank[v] = order++;
+			}
+			return assemble();
+		}
+
+		private double priority(int v) {
+			int shortcuts = contract(v, false);
+			return shortcuts - (liveDegree(out.get(v)) + liveDegree(in.get(v))) + contractedNeighbours[v];
+		}
+
+		private int liveDegree(List<WorkEdge> edges) {
+			int degree = 0;
+			for(WorkEdge e : edges) {
+				if(!contracted[e.node])
+					degree++;
+			}
+			return degree;
+		}
+
+		private void contract(int v) {
+			contract(v, true);
+			contracted[v] = true;
+			for(WorkEdge e : out.get(v))
+				contractedNeighbours[e.node]++;
+			for(WorkEdge e : in.get(v))
+				contractedNeighbours[e.node]++;
+		}
+
+		/** Shortcuts needed to contract v; they are added only when apply is set. */
+		private int contract(int v, boolean apply) {
+			int shortcuts = 0;
+			double maxOut = 0;
+			for(WorkEdge e : out.get(v)) {
+				if(!contracted[e.node])
+					maxOut = Math.max(maxOut, e.time);
+			}
+			for(WorkEdge inEdge : new ArrayList<WorkEdge>(in.get(v))) {
+				int u = inEdge.node;
+				if(contracted[u])
+					continue;
+				witnessSearch(u, v, inEdge.time + maxOut);
+				for(WorkEdge outEdge : new ArrayList<WorkEdge>(out.get(v))) {
+					int x = outEdge.node;
+					if(contracted[x] || x == u)
+						continue;
+					double via = inEdge.time + outEdge.time;
+					if(witness.distance(x) <= via)
+						continue;
+					shortcuts++;
+					if(apply)
+						addEdge(u, x, via, v);
+				}
+			}
+			return shortcuts;
+		}
+
+		/** Dijkstra from u over uncontracted nodes other than v, up to the given time. */
+		private void witnessSearch(int u, int v, double limit) {
+			witness.reset();
+			witness.reach(u, 0, -1);
+			int settled = 0;
+			while(!witness.heap.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+				double d = witness.heap.peekKey();
+				if(d > limit)
+					return;
+				int a = witness.heap.pop();
+				if(d > witness.distance(a))
+					continue;
+				settled++;
+				for(WorkEdge e : out.get(a)) {
+					if(e.node == v || contracted[e.node])
+						continue;
+					double nd = d + e.time;
+					if(nd < witness.distance(e.node))
+						witness.reach(e.node, nd, a);
+				}
+			}
+		}
+
+		private void addEdge(int from, int to, double time, int middle) {
+			for(WorkEdge e : out.get(from)) {
+				if(e.node == to) {
+					if(time < e.time) {
+						e.time = time;
+						e.middle = middle;
+						for(WorkEdge r : in.get(to)) {
+							if(r.node == from) {
+								r.time = time;
+								r.middle = middle;
+							}
+						}
+					}
+					return;
+				}
+			}
+			out.get(from).add(new WorkEdge(to, time, middle));
+			in.get(to).add(new WorkEdge(from, time, middle));
+		}
+
+		private ContractionHierarchy assemble() {
+			int[] upStart = new int[n + 1], downStart = new int[n + 1];
+			for(int u = 0; u < n; u++) {
+				for(WorkEdge e : out.get(u)) {
+					if(rank[e.node] > rank[u])
+						upStart[u + 1]++;
+					else
+						downStart[e.node + 1]++;
+				}
+			}
+			for(int i = 0; i < n; i++) {
+				upStart[i + 1] += upStart[i];
+				downStart[i + 1] += downStart[i];
+			}
+			int[] upTo = new int[upStart[n]], upMiddle = new int[upStart[n]];
+			double[] upTime = new double[upStart[n]];
+			int[] downFrom = new int[downStart[n]], downMiddle = new int[downStart[n]];
+			double[] downTime = new double[downStart[n]];
+			int[] upFill = upStart.clone(), downFill = downStart.clone();
+			for(int u = 0; u < n; u++) {
+				for(WorkEdge e : out.get(u)) {
+					if(rank[e.node] > rank[u]) {
+						int i = upFill[u]++;
+						upTo[i] = e.node;
+						upTime[i] = e.time;
+						upMiddle[i] = e.middle;
+					} else {
+						int i = downFill[e.node]++;
+						downFrom[i] = u;
+						downTime[i] = e.time;
+						downMiddle[i] = e.middle;
+					}
+				}
+			}
+			return new ContractionHierarchy(graph.checksum(), upStart, upTo, upTime, upMiddle,
+					downStart, downFrom, downTime, downMiddle);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// Storage
+	// ------------------------------------------------------------------------
+
+	public void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(graphChecksum);
+			writeInts(out, upStart);
+			writeInts(out, upTo);
+			writeDoubles(out, upTime);
+			writeInts(out, upMiddle);
+			writeInts(out, downStart);
+			writeInts(out, downFrom);
+			writeDoubles(out, downTime);
+			writeInts(out, downMiddle);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static ContractionHierarchy load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != MAGIC)
+				throw new IOException(file + " is not a contraction hierarchy file");
+			long graphChecksum = in.readLong();
+			return new ContractionHierarchy(graphChecksum, readInts(in), readInts(in), readDoubles(in),
+					readInts(in), readInts(in), readInts(in), readDoubles(in), readInts(in));
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		for(int v : values)
+			out.writeInt(v);
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		out.writeInt(values.length);
+		for(double v : values)
+			out.writeDouble(v);
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int[] values = new int[in.readInt()];
+		for(int i = 0; i < values.length; i++)
+			values[i] = in.readInt();
+		return values;
+	}
+
+	private static double[] readDoubles(DataInputStream in) throws IOException {
+		double[] values = new double[in.readInt()];
+		for(int i = 0; i < values.length; i++)
+			values[i] = in.readDouble();
+		return values;
+	}
+}
@@ -0,0 +1,62 @@
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the departure strings built by {@link Client#SetTime()}, e.g. "3,14,8am,20" for
+ * March 14th, 8:20 am. The client does not send a year, so the next occurrence of the date is
+ * assumed: this year's, unless that was more than a day ago, e.g. early January asked for in
+ * late December. A date that doesn't exist, like February 30th or minute 75, is rejected.
+ */
+public final class DepartureTime {
+
+	private DepartureTime() {
+	}
+
+	/** Minutes since the epoch, in the server's time zone. */
+	public static long toEpochMinutes(String date) {
+		String[] parts = date.split(",");
+		if(parts.length != 4)
+			throw new IllegalArgumentException("Bad departure time: " + date);
+		int month = Integer.parseInt(parts[0].trim());
+		int day = Integer.parseInt(parts[1].trim());
+		int hour = parseHour(parts[2].trim().toLowerCase());
+		int minute = Integer.parseInt(parts[3].trim());
+
+		Calendar calendar = Calendar.getInstance();
+		long now = calendar.getTimeInMillis();
+		// a lenient calendar would turn "2,30" into March 2nd
+		calendar.setLenient(false);
+		calendar.clear(Calendar.MILLISECOND);
+		calendar.set(calendar.get(Calendar.YEAR), month - 1, day, hour, minute, 0);
+		long time;
+		try {
+			time = calendar.getTimeInMillis();
+		} catch(IllegalArgumentException e) {
+			throw new IllegalArgumentException("Bad departure time: " + date);
+		}
+		if(time < now - TimeUnit.DAYS.toMillis(1))
+			calendar.add(Calendar.YEAR, 1);
+		return TimeUnit.MILLISECONDS.toMinutes(calendar.getTimeInMillis());
+	}
+
+	/** The client's format for the given epoch minute, e.g. "3,14,8am,20". */
+	public static String format(long epochMinutes) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(TimeUnit.MINUTES.toMillis(epochMinutes));
+		int hour = calendar.get(Calendar.HOUR_OF_DAY);
+		String h = (hour % 12 == 0 ? 12 : hour % 12) + (hour < 12 ? "am" : "pm");
+		return (calendar.get(Calendar.MONTH) + 1) + "," + calendar.get(Calendar.DAY_OF_MONTH) + "," + h + ","
+				+ calendar.get(Calendar.MINUTE);
+	}
+
+	/** "12am" is midnight and "12pm" is noon. */
+	private static int parseHour(String hour) {
+		boolean pm = hour.endsWith("pm");
+		if(!pm && !hour.endsWith("am"))
+			throw new IllegalArgumentException("Bad hour: " + hour);
+		int h = Integer.parseInt(hour.substring(0, hour.length() - 2));
+		if(h < 1 || h > 12)
+			throw new IllegalArgumentException("Bad hour: " + hour);
+		return (h % 12) + (pm ? 12 : 0);
+	}
+}
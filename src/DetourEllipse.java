@@ -0,0 +1,49 @@
+/**
+ * Area a driver can reach within their time tolerance. A driver going from s to e who drives
+ * at most maxSpeed map units per minute can only pass through p if
+ * |sp| + |pe| <= maxSpeed * (drivingTime + timeTolerance), so every point of a feasible
+ * rider lies inside the ellipse with foci s and e and that major axis.
+ */
+public class DetourEllipse {
+
+	private final double sx, sy, ex, ey;
+	private final double major;
+	private final boolean bounded;
+
+	public DetourEllipse(ParamData driver, double maxSpeed) {
+		int last = driver.getStopCount() - 1;
+		sx = driver.getX(0);
+		sy = driver.getY(0);
+		ex = driver.getX(last);
+		ey = driver.getY(last);
+		major = Math.max(maxSpeed * (driver.getDrivingTime() + driver.getTimeTolerance()),
+				Geo.distance(sx, sy, ex, ey));
+		// without a solved baseline, or with no route at all, there is nothing to bound the
+		// detour with
+		bounded = driver.getDrivingTime() >= 0 && !Double.isInfinite(major) && !Double.isNaN(major);
+	}
+
+	public boolean contains(double x, double y) {
+		if(!bounded)
+			return true;
+		return Geo.distance(sx, sy, x, y) + Geo.distance(x, y, ex, ey) <= major;
+	}
+
+	/** False when the driver has no finite baseline time; such an ellipse contains every point. */
+	public boolean isBounded() {
+		return bounded;
+	}
+
+	/** Axis-aligned bounding box as {minX, minY, maxX, maxY}. Only meaningful when bounded. */
+	public double[] bounds() {
+		double a = major / 2;
+		double c = Geo.distance(sx, sy, ex, ey) / 2;
+		double b = Math.sqrt(Math.max(a * a - c * c, 0));
+		double theta = Math.atan2(ey - sy, ex - sx);
+		double cos = Math.cos(theta), sin = Math.sin(theta);
+		double halfW = Math.sqrt(a * a * cos * cos + b * b * sin * sin);
+		double halfH = Math.sqrt(a * a * sin * sin + b * b * cos * cos);
+		double cx = (sx + ex) / 2, cy = (sy + ey) / 2;
+		return new double[] {cx - halfW, cy - halfH, cx + halfW, cy + halfH};
+	}
+}
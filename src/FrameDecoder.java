@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Incremental {@link Protocol} frame decoder for one connection. Bytes can arrive split at
+ * any point; whatever doesn't complete a frame is kept until the next call.
+ * <p>
+ * REGISTER and QUERY requests are decoded straight from the read buffer, with no payload
+ * copy. A frame too large to ever fit in the buffer is copied out as it arrives. Only bad
+ * framing, a wrong version or length, is an error here: a request that doesn't decode is
+ * passed on as bytes, and the worker answers it with an error like any other bad request.
+ */
+public class FrameDecoder {
+
+	private byte[] payload;
+	private int filled;
+	private byte type;
+	private int correlationId;
+
+	/**
+	 * Consumes complete frames from the buffer (in read mode) and adds them to frames. An
+	 * incomplete frame is left in the buffer, to be completed after compacting it, unless it
+	 * is larger than the buffer.
+	 */
+	public void decode(ByteBuffer in, List<Protocol.Frame> frames) throws IOException {
+		while(true) {
+			if(payload != null) {
+				int n = Math.min(in.remaining(), payload.length - filled);
+				in.get(payload, filled, n);
+				filled += n;
+				if(filled < payload.length)
+					return;
+				frames.add(new Protocol.Frame(type, correlationId, payload));
+				payload = null;
+				continue;
+			}
+			if(in.remaining() < Protocol.HEADER_SIZE)
+				return;
+			int start = in.position();
+			if(in.get(start) != Protocol.VERSION)
+				throw new IOException("Unsupported protocol version " + in.get(start));
+			int length = in.getInt(start + 6);
+			if(length < 0 || length > Protocol.MAX_PAYLOAD)
+				throw new IOException("Bad frame length " + length);
+			type = in.get(start + 1);
+			correlationId = in.getInt(start + 2);
+			int end = start + Protocol.HEADER_SIZE + length;
+			if(end <= in.limit()) {
+				in.position(start + Protocol.HEADER_SIZE);
+				frames.add(complete(in, end, length));
+				continue;
+			}
+			if(Protocol.HEADER_SIZE + length <= in.capacity())
+				return;
+			in.position(start + Protocol.HEADER_SIZE);
+			payload = new byte[length];
+			filled = 0;
+		}
+	}
+
+	/** The frame whose payload is in the buffer between its position and end. */
+	private Protocol.Frame complete(ByteBuffer in, int end, int length) {
+		if(type == Protocol.REGISTER || type == Protocol.QUERY) {
+			int start = in.position();
+			int limit = in.limit();
+			in.limit(end);
+			try {
+				ParamData request = ParamCodec.read(in);
+				if(!in.hasRemaining())
+					return new Protocol.Frame(type, correlationId, request);
+			} catch(IOException e) {
+				// copied out below, for the worker to reject
+			} finally {
+				in.limit(limit);
+			}
+			in.position(start);
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new Protocol.Frame(type, correlationId, bytes);
+	}
+}
@@ -0,0 +1,17 @@
+import com.esri.core.geometry.Point;
+
+/** Planar geometry helpers for stops. Distances are in map units. */
+public final class Geo {
+
+	private Geo() {
+	}
+
+	public static double distance(double x1, double y1, double x2, double y2) {
+		double dx = x2 - x1, dy = y2 - y1;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	public static double distance(Point a, Point b) {
+		return distance(a.getX(), a.getY(), b.getX(), b.getY());
+	}
+}
@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Uniform grid over map coordinates. An item is stored in every cell its bounding box
+ * touches, so a query only has to look at the cells its own box touches. A box more than
+ * MAX_SPAN cells wide or tall is kept in a single list that every query looks at instead,
+ * so that one huge box can't take over the grid. Safe for concurrent use: each cell is a
+ * copy-on-write list, so writers only contend on the cells they touch and queries take no
+ * locks at all.
+ */
+public class GridIndex<T> {
+
+	private static final int MAX_SPAN = 16;
+
+	private final double cellSize;
+	private final ConcurrentHashMap<Long, CopyOnWriteArrayList<T>> cells = new ConcurrentHashMap<Long, CopyOnWriteArrayList<T>>();
+	private final CopyOnWriteArrayList<T> oversized = new CopyOnWriteArrayList<T>();
+
+	public GridIndex(double cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	public void insert(T item, double minX, double minY, double maxX, double maxY) {
+		long x0 = cell(minX), x1 = cell(maxX), y0 = cell(minY), y1 = cell(maxY);
+		if(isOversized(x0, y0, x1, y1)) {
+			oversized.add(item);
+			return;
+		}
+		for(long x = x0; x <= x1; x++) {
+			for(long y = y0; y <= y1; y++) {
+				Long key = key(x, y);
+				CopyOnWriteArrayList<T> list = cells.get(key);
+				if(list == null) {
+					CopyOnWriteArrayList<T> created = new CopyOnWriteArrayList<T>();
+					list = cells.putIfAbsent(key, created);
+					if(list == null)
+						list = created;
+				}
+				list.add(item);
+			}
+		}
+	}
+
+	public void remove(T item, double minX, double minY, double maxX, double maxY) {
+		long x0 = cell(minX), x1 = cell(maxX), y0 = cell(minY), y1 = cell(maxY);
+		if(isOversized(x0, y0, x1, y1)) {
+			oversized.remove(item);
+			return;
+		}
+		for(long x = x0; x <= x1; x++) {
+			for(long y = y0; y <= y1; y++) {
+				// empty cells are kept; dropping one could lose a concurrent insert into it
+				List<T> list = cells.get(key(x, y));
+				if(list != null)
+					list.remove(item);
+			}
+		}
+	}
+
+	/** Items whose box shares a cell with the given box. May include items outside the box. */
+	public List<T> query(double minX, double minY, double maxX, double maxY) {
+		long x0 = cell(minX), x1 = cell(maxX), y0 = cell(minY), y1 = cell(maxY);
+		if(isOversized(x0, y0, x1, y1))
+			return all();
+		if(x0 == x1 && y0 == y1) {
+			List<T> list = cells.get(key(x0, y0));
+			List<T> found = list == null ? new ArrayList<T>() : new ArrayList<T>(list);
+			found.addAll(oversized);
+			return found;
+		}
+		IdentityHashMap<T, Boolean> seen = new IdentityHashMap<T, Boolean>();
+		List<T> found = new ArrayList<T>(oversized);
+		for(long x = x0; x <= x1; x++) {
+			for(long y = y0; y <= y1; y++) {
+				List<T> list = cells.get(key(x, y));
+				if(list == null)
+					continue;
+				for(T item : list) {
+					if(seen.put(item, Boolean.TRUE) == null)
+						found.add(item);
+				}
+			}
+		}
+		return found;
+	}
+
+	/** Every item, each once. */
+	public List<T> all() {
+		IdentityHashMap<T, Boolean> seen = new IdentityHashMap<T, Boolean>();
+		List<T> found = new ArrayList<T>(oversized);
+		for(List<T> list : cells.values()) {
+			for(T item : list) {
+				if(seen.put(item, Boolean.TRUE) == null)
+					found.add(item);
+			}
+		}
+		return found;
+	}
+
+	private static boolean isOversized(long x0, long y0, long x1, long y1) {
+		return x1 - x0 >= MAX_SPAN || y1 - y0 >= MAX_SPAN;
+	}
+
+	/** Clamped to the int range the keys hold; NaN falls in cell 0. */
+	private long cell(double v) {
+		double cell = Math.floor(v / cellSize);
+		return (long)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, cell));
+	}
+
+	private static Long key(long x, long y) {
+		return Long.valueOf((x << 32) | (y & 0xffffffffL));
+	}
+}
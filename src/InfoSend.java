@@ -1,33 +1,448 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
+/**
+ * Client side of {@link Protocol}. Keeps a small pool of connections per server address,
+ * opened on first use and kept until {@link #close()}. Any number of requests can be in
+ * flight on a connection at once: each is tagged with a correlation ID, and a reader thread
+ * per connection completes the matching future when its reply arrives. Match notifications
+ * for pooled requests go to the {@link MatchListener}.
+ * <p>
+ * Connecting backs off exponentially, with jitter, while the server is unreachable. A
+ * request whose connection is lost before the reply, or that the server answers with BUSY,
+ * is sent again, up to maxAttempts times in all. Requests keep their request ID when sent
+ * again, so the server never pools one twice.
+ */
 public class InfoSend {
-    private Socket socket = null;
-    private ObjectInputStream inputStream = null;
-    private ObjectOutputStream outputStream = null;
-    private boolean isConnected = false;
+    /** Told when a request that was pooled gets matched by a later arrival. */
+    public interface MatchListener {
+        /** match is a MATCHED reply: the counterpart and, if the server sent it, the route. */
+        void matched(long requestId, MatchReply match);
+    }
+
+    /** Turns the reply frame to one request into its result. */
+    private interface ReplyDecoder<T> {
+        T decode(Protocol.Frame frame) throws IOException;
+    }
+
+    private static final int CONNECT_ATTEMPTS = 8;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // only schedules; what it schedules runs on the network threads
+    private static final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(daemon("infosend-retry"));
+    // connects and resends, which may block, so an unreachable server holds up nobody else
+    private static final ExecutorService network = Executors.newCachedThreadPool(daemon("infosend-network"));
+
+    private final int connectionsPerServer;
+    private final int maxAttempts;
+    private final Backoff backoff = new Backoff(100, 10000);
+    private final ConcurrentHashMap<String, ServerConnections> servers = new ConcurrentHashMap<String, ServerConnections>();
+    private volatile MatchListener listener;
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /** Runs task on a network thread after delayMillis. */
+    private static void later(final Runnable task, long delayMillis) {
+        if (delayMillis <= 0) {
+            network.execute(task);
+            return;
+        }
+        retries.schedule(new Runnable() {
+            @Override
+            public void run() {
+                network.execute(task);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
 
     public InfoSend() {
+        this(2, 5);
+    }
+
+    public InfoSend(int connectionsPerServer, int maxAttempts) {
+        this.connectionsPerServer = Math.max(1, connectionsPerServer);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /** Notifications only arrive while the connection the request was pooled on is open. */
+    public void setMatchListener(MatchListener listener) {
+        this.listener = listener;
+    }
+
+    /** Registers the request and waits for the server's answer. */
+    public MatchReply sendParams(String ip, int port, ParamData sentData) throws IOException {
+        return await(registerAsync(ip, port, sentData));
+    }
+
+    /** Asks for a match without being pooled when there is none. */
+    public MatchReply query(String ip, int port, ParamData sentData) throws IOException {
+        return await(queryAsync(ip, port, sentData));
+    }
+
+    /**
+     * Registers several requests at once, {@link Protocol#MAX_BATCH} to a frame. Replies are
+     * returned in the order of sentData.
+     */
+    public List<MatchReply> sendAll(String ip, int port, List<ParamData> sentData) throws IOException {
+        List<CompletableFuture<List<MatchReply>>> batches = new ArrayList<CompletableFuture<List<MatchReply>>>();
+        for (int from = 0; from < sentData.size(); from += Protocol.MAX_BATCH)
+            batches.add(registerAllAsync(ip, port, sentData.subList(from, Math.min(from + Protocol.MAX_BATCH, sentData.size()))));
+        List<MatchReply> replies = new ArrayList<MatchReply>(sentData.size());
+        for (CompletableFuture<List<MatchReply>> batch : batches)
+            replies.addAll(await(batch));
+        return replies;
+    }
+
+    /**
+     * Registers the request without waiting. The future fails with an IOException when the
+     * request can't be delivered within maxAttempts.
+     */
+    public CompletableFuture<MatchReply> registerAsync(String ip, int port, ParamData sentData) {
+        return single(ip, port, Protocol.REGISTER, sentData);
+    }
+
+    /** Query counterpart of {@link #registerAsync}. */
+    public CompletableFuture<MatchReply> queryAsync(String ip, int port, ParamData sentData) {
+        return single(ip, port, Protocol.QUERY, sentData);
+    }
+
+    /** Registers up to {@link Protocol#MAX_BATCH} requests in one frame. */
+    public CompletableFuture<List<MatchReply>> registerAllAsync(String ip, int port, List<ParamData> sentData) {
+        byte[] payload;
+        try {
+            payload = Protocol.encodeBatch(sentData);
+        } catch (IOException e) {
+            return failed(e);
+        }
+        return call(ip, port, Protocol.REGISTER_BATCH, payload, new ReplyDecoder<List<MatchReply>>() {
+            @Override
+            public List<MatchReply> decode(Protocol.Frame frame) throws IOException {
+                if (frame.type != Protocol.REPLY_BATCH)
+                    throw new IOException(Protocol.toReply(frame).toString());
+                return Protocol.decodeReplies(frame.payload);
+            }
+        });
+    }
+
+    private CompletableFuture<MatchReply> single(String ip, int port, byte type, ParamData sentData) {
+        byte[] payload = Protocol.encode(sentData);
+        System.out.println("Object to be written = " + sentData);
+        return call(ip, port, type, payload, new ReplyDecoder<MatchReply>() {
+            @Override
+            public MatchReply decode(Protocol.Frame frame) throws IOException {
+                return Protocol.toReply(frame);
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> call(String ip, int port, byte type, byte[] payload, ReplyDecoder<T> decoder) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        attempt(servers(ip, port), type, payload, decoder, result, 1);
+        return result;
+    }
+
+    private <T> void attempt(final ServerConnections server, final byte type, final byte[] payload,
+            final ReplyDecoder<T> decoder, final CompletableFuture<T> result, final int attempt) {
+        server.get().whenComplete(new BiConsumer<Connection, Throwable>() {
+            @Override
+            public void accept(Connection connection, Throwable failure) {
+                if (failure != null)
+                    result.completeExceptionally(failure);
+                else
+                    attemptOn(connection, server, type, payload, decoder, result, attempt);
+            }
+        });
+    }
+
+    private <T> void attemptOn(Connection connection, final ServerConnections server, final byte type, final byte[] payload,
+            final ReplyDecoder<T> decoder, final CompletableFuture<T> result, final int attempt) {
+        connection.send(type, payload).whenComplete(new BiConsumer<Protocol.Frame, Throwable>() {
+            @Override
+            public void accept(Protocol.Frame frame, Throwable failure) {
+                boolean busy = failure == null && frame.type == Protocol.REPLY_BUSY;
+                if ((failure == null && !busy) || attempt >= maxAttempts) {
+                    if (failure != null)
+                        result.completeExceptionally(failure);
+                    else {
+                        try {
+                            result.complete(decoder.decode(frame));
+                        } catch (IOException e) {
+                            result.completeExceptionally(e);
+                        }
+                    }
+                    return;
+                }
+                long retryAfter = backoff.delayMillis(attempt - 1);
+                if (busy) {
+                    try {
+                        retryAfter = Protocol.decodeBusy(frame.payload);
+                    } catch (IOException e) {
+                        // keep the backoff delay
+                    }
+                }
+                System.out.println("Sending again in " + retryAfter + "ms" + (failure == null ? ", server busy" : ", " + failure));
+                later(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt(server, type, payload, decoder, result, attempt + 1);
+                    }
+                }, retryAfter);
+            }
+        });
+    }
+
+    private ServerConnections servers(String ip, int port) {
+        String key = ip + ":" + port;
+        ServerConnections server = servers.get(key);
+        if (server == null) {
+            ServerConnections created = new ServerConnections(ip, port);
+            server = servers.putIfAbsent(key, created);
+            if (server == null)
+                server = created;
+        }
+        return server;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable failure) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    private static <T> T await(CompletableFuture<T> reply) throws IOException {
+        try {
+            return reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the server");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void notifyListener(Protocol.Frame frame) throws IOException {
+        long requestId = Protocol.notifiedRequestId(frame.payload);
+        MatchReply match = Protocol.notifiedMatch(frame.payload);
+        System.out.println("Request " + requestId + " matched");
+        MatchListener l = listener;
+        if (l != null)
+            l.matched(requestId, match);
+    }
+
+    /** Closes all connections; requests still waiting for a reply fail. */
+    public void close() {
+        for (ServerConnections server : servers.values())
+            server.close();
+        servers.clear();
+    }
+
+    /**
+     * The connections to one server, used in turn. A broken one is replaced on next use. The
+     * lock only guards the slots: connecting happens outside it, and requests for a slot that
+     * is still connecting wait on the same future.
+     */
+    private class ServerConnections {
+        private final String ip;
+        private final int port;
+        private final List<CompletableFuture<Connection>> slots = new ArrayList<CompletableFuture<Connection>>();
+        private final AtomicInteger next = new AtomicInteger();
+
+        ServerConnections(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+            for (int i = 0; i < connectionsPerServer; i++)
+                slots.add(null);
+        }
+
+        /**
+         * The next connection in turn, completed once it is open. Never blocks: connecting
+         * happens on a network thread.
+         */
+        CompletableFuture<Connection> get() {
+            int slot = (next.getAndIncrement() & Integer.MAX_VALUE) % connectionsPerServer;
+            CompletableFuture<Connection> c;
+            synchronized (slots) {
+                c = slots.get(slot);
+                if (c != null && (!c.isDone() || isOpen(c)))
+                    return c;
+                c = new CompletableFuture<Connection>();
+                slots.set(slot, c);
+            }
+            connectLater(c, 0, 0);
+            return c;
+        }
+
+        private boolean isOpen(CompletableFuture<Connection> c) {
+            return !c.isCompletedExceptionally() && c.getNow(null).isOpen();
+        }
+
+        private void connectLater(final CompletableFuture<Connection> connection, final int attempt, long delayMillis) {
+            later(new Runnable() {
+                @Override
+                public void run() {
+                    connect(connection, attempt);
+                }
+            }, delayMillis);
+        }
+
+        /**
+         * Tries to connect once. A failed attempt is tried again after the backoff delay, up to
+         * CONNECT_ATTEMPTS in all, so no thread sleeps in between.
+         */
+        private void connect(final CompletableFuture<Connection> connection, final int attempt) {
+            try {
+                Connection c = new Connection(open());
+                // close() gave up on this slot meanwhile
+                if (connection.complete(c))
+                    System.out.println("Connected");
+                else
+                    c.close();
+                return;
+            } catch (IOException e) {
+                System.out.println("Connecting to " + ip + ":" + port + " failed: " + e);
+                if (attempt + 1 >= CONNECT_ATTEMPTS) {
+                    connection.completeExceptionally(e);
+                    return;
+                }
+            }
+            connectLater(connection, attempt + 1, backoff.delayMillis(attempt));
+        }
+
+        private Socket open() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }
 
+        void close() {
+            synchronized (slots) {
+                for (int i = 0; i < slots.size(); i++) {
+                    CompletableFuture<Connection> c = slots.get(i);
+                    slots.set(i, null);
+                    if (c != null && !c.completeExceptionally(new IOException("Connection closed")) && !c.isCompletedExceptionally())
+                        c.getNow(null).close();
+                }
+            }
+        }
     }
 
-    public void sendParams(String ip,int port,ParamData sentData) {
+    /** One socket, its in-flight requests and the thread reading its replies. */
+    private class Connection {
+        private final Socket socket;
+        private final DataOutputStream outputStream;
+        private final Map<Integer, CompletableFuture<Protocol.Frame>> inFlight = new ConcurrentHashMap<Integer, CompletableFuture<Protocol.Frame>>();
+        private int nextCorrelationId = 1;
+        private volatile boolean open = true;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            try {
+                socket.setTcpNoDelay(true);
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        readFrames(in);
+                    }
+                }, "infosend-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        synchronized CompletableFuture<Protocol.Frame> send(byte type, byte[] payload) {
+            CompletableFuture<Protocol.Frame> reply = new CompletableFuture<Protocol.Frame>();
+            int id = nextCorrelationId++;
+            if (nextCorrelationId == Protocol.NO_CORRELATION)
+                nextCorrelationId++;
+            // registered before writing, the reply can come back before write() returns
+            inFlight.put(id, reply);
+            try {
+                Protocol.write(outputStream, type, id, payload);
+                outputStream.flush();
+            } catch (IOException e) {
+                inFlight.remove(id);
+                reply.completeExceptionally(e);
+                close();
+            }
+            return reply;
+        }
+
+        /** Reads frames until the connection ends, then fails the requests still waiting on it. */
+        private void readFrames(DataInputStream in) {
+            IOException failure;
+            try {
+                Protocol.Frame frame;
+                while ((frame = Protocol.read(in)) != null) {
+                    if (frame.type == Protocol.NOTIFY_MATCHED) {
+                        notifyListener(frame);
+                        continue;
+                    }
+                    CompletableFuture<Protocol.Frame> reply = inFlight.remove(frame.correlationId);
+                    if (reply != null)
+                        reply.complete(frame);
+                    else
+                        System.out.println("Reply to unknown request " + frame.correlationId);
+                }
+                failure = new EOFException("Connection closed by server");
+            } catch (IOException e) {
+                failure = e;
+            }
+            close();
+            for (Integer id : inFlight.keySet()) {
+                CompletableFuture<Protocol.Frame> reply = inFlight.remove(id);
+                if (reply != null)
+                    reply.completeExceptionally(failure);
+            }
+        }
 
-        while (!isConnected) {
+        void close() {
+            open = false;
             try {
-                socket = new Socket(ip, port);
-                System.out.println("Connected");
-                isConnected = true;
-                outputStream = new ObjectOutputStream(socket.getOutputStream());
-                System.out.println("Object to be written = " + sentData);
-                outputStream.writeObject(sentData);
-                System.out.println("Data Sent");
                 socket.close();
-            } catch (SocketException se) {
-                se.printStackTrace();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,285 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.esri.core.geometry.Point;
+
+/**
+ * A driver's planned stops: the start, the pickup and drop-off of every rider aboard, and the
+ * end, with the minutes of each leg between consecutive stops. Another rider is fitted in by
+ * insertion: every placement of the rider's pickup and drop-off between existing stops is
+ * priced from leg times, a handful of lookups each, and checked against the seats, the
+ * driver's tolerance and the tolerance of every passenger already aboard. The legs a rider
+ * needs are listed by {@link #legsFor}, so that those of many itineraries can be solved, or
+ * found in the leg cache, in one routing request. The rider's direct ride is the same for
+ * every driver and is taken from {@link ParamData#getDrivingTime}, solved once when the rider
+ * arrives.
+ * <p>
+ * Immutable; {@link #insert} returns a new itinerary with the rider aboard.
+ */
+public class Itinerary {
+
+	private final ParamData driver;
+	private final int seats;
+	// the driver's own minutes, start to end
+	private final double baseline;
+	private final Point[] points;
+	// the rider each stop belongs to, null for the driver's start and end
+	private final ParamData[] owners;
+	// the longest ride each stop's rider accepts, in minutes
+	private final double[] limits;
+	// legs[k] is the minutes from stop k to stop k + 1
+	private final double[] legs;
+	private final Itinerary previous;
+	// derived from the above
+	private final double[] arrival;
+	private final int[] load;
+	private final int[] pickupAt;
+	private final int[] dropoffAt;
+	private final double[] rideLimit;
+
+	/** A driver with no riders yet, who can carry up to seats of them at a time. */
+	public static Itinerary start(ParamData driver, int seats) {
+		Point[] points = {driver.getStop(0), driver.getStop(driver.getStopCount() - 1)};
+		return new Itinerary(driver, seats, driver.getDrivingTime(), points, new ParamData[2],
+				new double[2], new double[] {driver.getDrivingTime()}, null);
+	}
+
+	private Itinerary(ParamData driver, int seats, double baseline, Point[] points, ParamData[] owners,
+			double[] limits, double[] legs, Itinerary previous) {
+		this.driver = driver;
+		this.seats = seats;
+		this.baseline = baseline;
+		this.points = points;
+		this.owners = owners;
+		this.limits = limits;
+		this.legs = legs;
+		this.previous = previous;
+		arrival = new double[points.length];
+		for(int k = 1; k < points.length; k++)
+			arrival[k] = arrival[k - 1] + legs[k - 1];
+		int riders = (points.length - 2) / 2;
+		pickupAt = new int[riders];
+		dropoffAt = new int[riders];
+		rideLimit = new double[riders];
+		load = new int[legs.length];
+		ParamData[] aboard = new ParamData[riders];
+		int count = 0, onBoard = 0;
+		for(int k = 1; k < points.length - 1; k++) {
+			int rider = indexOf(aboard, count, owners[k]);
+			if(rider < 0) {
+				aboard[count] = owners[k];
+				pickupAt[count] = k;
+				rideLimit[count] = limits[k];
+				count++;
+				onBoard++;
+			} else {
+				dropoffAt[rider] = k;
+				onBoard--;
+			}
+			load[k] = onBoard;
+		}
+	}
+
+	private static int indexOf(ParamData[] riders, int count, ParamData rider) {
+		for(int i = 0; i < count; i++) {
+			if(riders[i] == rider)
+				return i;
+		}
+		return -1;
+	}
+
+	public ParamData getDriver() {
+		return driver;
+	}
+
+	/** The stops in driving order. */
+	public Point[] getStops() {
+		return points.clone();
+	}
+
+	/** Riders aboard, in pickup order. */
+	public List<ParamData> getRiders() {
+		List<ParamData> riders = new ArrayList<ParamData>();
+		for(int k : pickupAt)
+			riders.add(owners[k]);
+		return riders;
+	}
+
+	/**
+	 * Whether another rider might still fit: some of the driver's tolerance is left. Seats are
+	 * checked per insertion, as they are free again after each drop-off.
+	 */
+	public boolean canTakeMore() {
+		return getDetour() < driver.getTimeTolerance();
+	}
+
+	/** Minutes from start to end. */
+	public double getMinutes() {
+		return arrival[arrival.length - 1];
+	}
+
+	/** Minutes the riders add to the driver's own trip. */
+	public double getDetour() {
+		return getMinutes() - baseline;
+	}
+
+	/**
+	 * Whether this itinerary was made from other by inserting one rider; a null other stands
+	 * for the driver without riders.
+	 */
+	public boolean isExtensionOf(Itinerary other) {
+		return other == null ? previous != null && previous.previous == null : previous == other;
+	}
+
+	/*
+	 * Legs needed to insert a rider, for n legs (n + 1 stops) and the rider's pickup p and
+	 * drop-off q, in this order:
+	 *   stop k -> p   for k in 0..n-1   (pickup right after stop k)
+	 *   p -> stop k   for k in 1..n-1   (drop-off further on)
+	 *   stop k -> q   for k in 1..n-1
+	 *   q -> stop k   for k in 1..n
+	 * 4n - 2 legs; for a driver without riders, start -> p and q -> end. The direct ride p -> q
+	 * is the rider's driving time.
+	 */
+
+	private int toPickup(int k) {
+		return k;
+	}
+
+	private int fromPickup(int k) {
+		return legs.length + k - 1;
+	}
+
+	private int toDropoff(int k) {
+		return 2 * legs.length - 1 + k - 1;
+	}
+
+	private int fromDropoff(int k) {
+		return 3 * legs.length - 2 + k - 1;
+	}
+
+	/** The legs {@link #insert} needs for this rider, each as a two stop route. */
+	public List<Point[]> legsFor(ParamData rider) {
+		int n = legs.length;
+		Point pickup = rider.getStop(0);
+		Point dropoff = rider.getStop(rider.getStopCount() - 1);
+		List<Point[]> needed = new ArrayList<Point[]>(4 * n - 2);
+		for(int k = 0; k < n; k++)
+			needed.add(new Point[] {points[k], pickup});
+		for(int k = 1; k < n; k++)
+			needed.add(new Point[] {pickup, points[k]});
+		for(int k = 1; k < n; k++)
+			needed.add(new Point[] {points[k], dropoff});
+		for(int k = 1; k <= n; k++)
+			needed.add(new Point[] {dropoff, points[k]});
+		return needed;
+	}
+
+	/**
+	 * The cheapest feasible way to take the rider, or null when there is none. legMinutes are
+	 * the travel times of {@link #legsFor}, in the same order. A rider whose tolerance is zero
+	 * or less accepts any ride time, as drivers' tolerances bound the detour anyway.
+	 */
+	public Itinerary insert(ParamData rider, double[] legMinutes) {
+		int n = legs.length;
+		double direct = rider.getDrivingTime();
+		double limit = rider.getTimeTolerance() > 0 ? direct + rider.getTimeTolerance() : Double.POSITIVE_INFINITY;
+		double budget = baseline + driver.getTimeTolerance() - getMinutes();
+		int bestPickup = -1, bestDropoff = -1;
+		double best = Double.POSITIVE_INFINITY;
+		for(int i = 0; i < n; i++) {
+			if(load[i] >= seats)
+				continue;
+			// drop-off right after the pickup
+			double added = legMinutes[toPickup(i)] + direct + legMinutes[fromDropoff(i + 1)] - legs[i];
+			if(added < best && added < budget && fits(i, added, i, 0)) {
+				best = added;
+				bestPickup = i;
+				bestDropoff = i;
+			}
+			if(i + 1 == n)
+				continue;
+			double pickupAdded = legMinutes[toPickup(i)] + legMinutes[fromPickup(i + 1)] - legs[i];
+			for(int j = i + 1; j < n && load[j] < seats && pickupAdded < best; j++) {
+				double dropoffAdded = legMinutes[toDropoff(j)] + legMinutes[fromDropoff(j + 1)] - legs[j];
+				added = pickupAdded + dropoffAdded;
+				double ride = legMinutes[fromPickup(i + 1)] + arrival[j] - arrival[i + 1] + legMinutes[toDropoff(j)];
+				if(added < best && added < budget && ride <= limit && fits(i, pickupAdded, j, dropoffAdded)) {
+					best = added;
+					bestPickup = i;
+					bestDropoff = j;
+				}
+			}
+		}
+		if(bestPickup < 0)
+			return null;
+		return with(rider, legMinutes, bestPickup, bestDropoff);
+	}
+
+	/**
+	 * Whether every passenger aboard still rides within their limit when the legs after stops
+	 * i and j grow by the given minutes.
+	 */
+	private boolean fits(int i, double iAdded, int j, double jAdded) {
+		for(int m = 0; m < pickupAt.length; m++) {
+			double ride = arrival[dropoffAt[m]] - arrival[pickupAt[m]];
+			if(pickupAt[m] <= i && dropoffAt[m] > i)
+				ride += iAdded;
+			if(j != i && pickupAt[m] <= j && dropoffAt[m] > j)
+				ride += jAdded;
+			if(ride > rideLimit[m])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This itinerary with the rider's pickup placed after stop pickupAfter and drop-off after
+	 * stop dropoffAfter, without checking seats or tolerances.
+	 */
+	public Itinerary with(ParamData rider, double[] legMinutes, int pickupAfter, int dropoffAfter) {
+		int n = legs.length;
+		double limit = rider.getTimeTolerance() > 0 ? rider.getDrivingTime() + rider.getTimeTolerance() : Double.POSITIVE_INFINITY;
+		Point[] newPoints = new Point[points.length + 2];
+		ParamData[] newOwners = new ParamData[points.length + 2];
+		double[] newLimits = new double[points.length + 2];
+		double[] newLegs = new double[n + 2];
+		int s = 0, l = 0;
+		for(int k = 0; k <= n; k++) {
+			newPoints[s] = points[k];
+			newOwners[s] = owners[k];
+			newLimits[s++] = limits[k];
+			if(k == n)
+				break;
+			if(k == pickupAfter) {
+				newPoints[s] = rider.getStop(0);
+				newOwners[s] = rider;
+				newLimits[s++] = limit;
+				newLegs[l++] = legMinutes[toPickup(k)];
+				if(k == dropoffAfter) {
+					newLegs[l++] = rider.getDrivingTime();
+				} else {
+					newLegs[l++] = legMinutes[fromPickup(k + 1)];
+					continue;
+				}
+			} else if(k == dropoffAfter) {
+				newLegs[l++] = legMinutes[toDropoff(k)];
+			} else {
+				newLegs[l++] = legs[k];
+				continue;
+			}
+			newPoints[s] = rider.getStop(rider.getStopCount() - 1);
+			newOwners[s] = rider;
+			newLimits[s++] = limit;
+			newLegs[l++] = legMinutes[fromDropoff(k + 1)];
+		}
+		return new Itinerary(driver, seats, baseline, newPoints, newOwners, newLimits, newLegs, this);
+	}
+
+	@Override
+	public String toString() {
+		return "Itinerary[driver=" + driver.getRequestId() + ", riders=" + pickupAt.length + ", seats=" + seats
+				+ ", minutes=" + getMinutes() + ", legs=" + Arrays.toString(legs) + "]";
+	}
+}
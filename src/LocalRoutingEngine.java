@@ -0,0 +1,132 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.Polyline;
+import com.esri.core.geometry.SpatialReference;
+
+/**
+ * Routes in-process over a {@link RoadGraph}. Each stop is snapped to its nearest graph node
+ * and consecutive stops are joined by the fastest path found by the {@link PathFinder}.
+ */
+public class LocalRoutingEngine implements RoutingEngine {
+
+	private final RoadGraph graph;
+	private final PathFinder finder;
+
+	public LocalRoutingEngine(RoadGraph graph, PathFinder finder) {
+		this.graph = graph;
+		this.finder = finder;
+	}
+
+	/** The fastest speed on any road of the graph, in map units per minute. */
+	public double getMaxSpeed() {
+		return graph.getMaxSpeed();
+	}
+
+	@Override
+	public RouteSolution solve(Point[] stops, SpatialReference sRef) throws Exception {
+		checkWkid(sRef);
+		int[] nodes = new int[stops.length];
+		for(int i = 0; i < stops.length; i++)
+			nodes[i] = graph.nearestNode(stops[i].getX(), stops[i].getY());
+		double minutes = 0;
+		Polyline geometry = new Polyline();
+		boolean started = false;
+		for(int i = 1; i < nodes.length; i++) {
+			int[] path = finder.path(nodes[i - 1], nodes[i]);
+			if(path == null)
+				return RouteSolution.UNREACHABLE;
+			for(int j = 1; j < path.length; j++)
+				minutes += graph.edgeTime(path[j - 1], path[j]);
+			for(int j = started ? 1 : 0; j < path.length; j++) {
+				if(!started) {
+					geometry.startPath(graph.getX(path[j]), graph.getY(path[j]));
+					started = true;
+				} else
+					geometry.lineTo(graph.getX(path[j]), graph.getY(path[j]));
+			}
+		}
+		return new RouteSolution(minutes, geometry);
+	}
+
+	@Override
+	public RouteSolution[] solveAll(List<Point[]> routes, SpatialReference sRef) throws Exception {
+		RouteSolution[] solutions = new RouteSolution[routes.size()];
+		for(int i = 0; i < solutions.length; i++)
+			solutions[i] = solve(routes.get(i), sRef);
+		return solutions;
+	}
+
+	/**
+	 * Each leg is grouped with the others that start at the same graph node, or with those that
+	 * end at the same one, whichever group is bigger, and every group is answered by one
+	 * {@link PathFinder#travelTimes} search.
+	 */
+	@Override
+	public double[] legMinutes(List<Point[]> legs, SpatialReference sRef) {
+		checkWkid(sRef);
+		int[] from = new int[legs.size()];
+		int[] to = new int[legs.size()];
+		Map<Integer, Integer> starting = new HashMap<Integer, Integer>();
+		Map<Integer, Integer> ending = new HashMap<Integer, Integer>();
+		for(int i = 0; i < from.length; i++) {
+			Point[] leg = legs.get(i);
+			from[i] = graph.nearestNode(leg[0].getX(), leg[0].getY());
+			to[i] = graph.nearestNode(leg[leg.length - 1].getX(), leg[leg.length - 1].getY());
+			count(starting, from[i]);
+			count(ending, to[i]);
+		}
+		Map<Integer, List<Integer>> outbound = new HashMap<Integer, List<Integer>>();
+		Map<Integer, List<Integer>> inbound = new HashMap<Integer, List<Integer>>();
+		for(int i = 0; i < from.length; i++) {
+			if(starting.get(Integer.valueOf(from[i])).intValue() >= ending.get(Integer.valueOf(to[i])).intValue())
+				group(outbound, from[i], i);
+			else
+				group(inbound, to[i], i);
+		}
+		double[] minutes = new double[from.length];
+		answer(outbound, to, true, minutes);
+		answer(inbound, from, false, minutes);
+		return minutes;
+	}
+
+	private void answer(Map<Integer, List<Integer>> groups, int[] others, boolean outbound, double[] minutes) {
+		for(Map.Entry<Integer, List<Integer>> group : groups.entrySet()) {
+			int hub = group.getKey().intValue();
+			List<Integer> legs = group.getValue();
+			if(legs.size() == 1) {
+				int i = legs.get(0).intValue();
+				minutes[i] = outbound ? finder.travelTime(hub, others[i]) : finder.travelTime(others[i], hub);
+				continue;
+			}
+			int[] targets = new int[legs.size()];
+			for(int j = 0; j < targets.length; j++)
+				targets[j] = others[legs.get(j).intValue()];
+			double[] times = finder.travelTimes(hub, targets, outbound);
+			for(int j = 0; j < targets.length; j++)
+				minutes[legs.get(j).intValue()] = times[j];
+		}
+	}
+
+	private static void count(Map<Integer, Integer> counts, int node) {
+		Integer count = counts.get(Integer.valueOf(node));
+		counts.put(Integer.valueOf(node), Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+	}
+
+	private static void group(Map<Integer, List<Integer>> groups, int node, int leg) {
+		List<Integer> legs = groups.get(Integer.valueOf(node));
+		if(legs == null) {
+			legs = new ArrayList<Integer>();
+			groups.put(Integer.valueOf(node), legs);
+		}
+		legs.add(Integer.valueOf(leg));
+	}
+
+	private void checkWkid(SpatialReference sRef) {
+		if(sRef != null && graph.getWkid() != 0 && sRef.getID() != graph.getWkid())
+			throw new IllegalArgumentException("Stops are in WKID " + sRef.getID() + " but the road graph is in " + graph.getWkid());
+	}
+}
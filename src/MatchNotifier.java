@@ -0,0 +1,87 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connections waiting to hear about a match for their pooled requests. When a later arrival
+ * claims a pooled request, the waiting client gets a NOTIFY_MATCHED frame on the connection
+ * it registered from. Subscriptions end with the connection, but the request stays its
+ * client's: only that client can subscribe again, e.g. after reconnecting, until the request
+ * is matched for good or leaves the pool.
+ */
+public class MatchNotifier {
+
+	private final ConcurrentHashMap<Long, NioFrontEnd.Connection> subscribers = new ConcurrentHashMap<Long, NioFrontEnd.Connection>();
+	private final ConcurrentHashMap<NioFrontEnd.Connection, Set<Long>> byConnection = new ConcurrentHashMap<NioFrontEnd.Connection, Set<Long>>();
+	// the client each subscribed request belongs to
+	private final ConcurrentHashMap<Long, Object> owners = new ConcurrentHashMap<Long, Object>();
+
+	/**
+	 * Sends the request's notifications to connection, of the given client. Returns false,
+	 * subscribing nothing, when another client subscribed the request first.
+	 */
+	public boolean subscribe(ParamData pooled, NioFrontEnd.Connection connection, Object client) {
+		Long id = Long.valueOf(pooled.getRequestId());
+		Object owner = owners.putIfAbsent(id, client);
+		if(owner != null && !owner.equals(client))
+			return false;
+		Set<Long> ids = byConnection.get(connection);
+		if(ids == null) {
+			Set<Long> created = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+			ids = byConnection.putIfAbsent(connection, created);
+			if(ids == null)
+				ids = created;
+		}
+		ids.add(id);
+		subscribers.put(id, connection);
+		// the connection may have closed before it was recorded above
+		if(!connection.isOpen())
+			closed(connection);
+		return true;
+	}
+
+	/**
+	 * Tells the client that pooled the request about its match; route is the shared route in
+	 * {@link PolylineCodec} form, or null. The subscription ends unless more is set, for a
+	 * driver who stays pooled to take more riders.
+	 * 
+	 * @return false when the client is no longer connected
+	 */
+	public boolean notifyMatched(ParamData pooled, ParamData partner, byte[] route, boolean more) {
+		Long id = Long.valueOf(pooled.getRequestId());
+		if(!more)
+			owners.remove(id);
+		NioFrontEnd.Connection connection = more ? subscribers.get(id) : subscribers.remove(id);
+		if(connection == null)
+			return false;
+		if(!more) {
+			Set<Long> ids = byConnection.get(connection);
+			if(ids != null)
+				ids.remove(id);
+		}
+		if(!connection.isOpen())
+			return false;
+		connection.send(Protocol.NOTIFY_MATCHED, Protocol.NO_CORRELATION, Protocol.encodeNotification(pooled.getRequestId(), partner, route));
+		return true;
+	}
+
+	/** Ends the subscription of a request that left the pool unmatched. */
+	public void unsubscribe(ParamData pooled) {
+		Long id = Long.valueOf(pooled.getRequestId());
+		owners.remove(id);
+		NioFrontEnd.Connection connection = subscribers.remove(id);
+		if(connection == null)
+			return;
+		Set<Long> ids = byConnection.get(connection);
+		if(ids != null)
+			ids.remove(id);
+	}
+
+	public void closed(NioFrontEnd.Connection connection) {
+		Set<Long> ids = byConnection.remove(connection);
+		if(ids == null)
+			return;
+		for(Long id : ids)
+			subscribers.remove(id, connection);
+	}
+}
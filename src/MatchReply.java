@@ -0,0 +1,64 @@
+import com.esri.core.geometry.Polyline;
+
+/** The server's answer to one request sent through {@link InfoSend}. */
+public class MatchReply {
+
+	public enum Status { MATCHED, POOLED, NO_MATCH, ERROR, BUSY }
+
+	private final Status status;
+	private final ParamData partner;
+	private final String message;
+	private final int retryAfterMillis;
+	private final Polyline route;
+
+	public MatchReply(Status status, ParamData partner, String message) {
+		this(status, partner, message, 0);
+	}
+
+	public MatchReply(Status status, ParamData partner, String message, int retryAfterMillis) {
+		this(status, partner, message, retryAfterMillis, null);
+	}
+
+	/** A MATCHED reply; route may be null. */
+	public static MatchReply matched(ParamData partner, Polyline route) {
+		return new MatchReply(Status.MATCHED, partner, null, 0, route);
+	}
+
+	private MatchReply(Status status, ParamData partner, String message, int retryAfterMillis, Polyline route) {
+		this.status = status;
+		this.partner = partner;
+		this.message = message;
+		this.retryAfterMillis = retryAfterMillis;
+		this.route = route;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/** The driver or rider the request was matched with, when MATCHED; its request ID is 0. */
+	public ParamData getPartner() {
+		return partner;
+	}
+
+	/** When MATCHED, the driver's route through the rider's stops, if the server sent it. */
+	public Polyline getRoute() {
+		return route;
+	}
+
+	/** Error text, when ERROR. */
+	public String getMessage() {
+		return message;
+	}
+
+	/** When BUSY, how long to wait before sending the request again. */
+	public int getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "MatchReply[" + status + (message == null ? "" : ", " + message)
+				+ (status == Status.BUSY ? ", retry after " + retryAfterMillis + "ms" : "") + "]";
+	}
+}
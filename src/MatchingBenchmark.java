@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares {@link MinCostMatching} with greedy cheapest-first matching on a synthetic pool:
+ * drivers and riders spread over a square, each driver linked to the riders within reach, with
+ * a detour that grows with the distance between them. Prints how many pairs each one matches,
+ * their total detour, and how long the assignment took.
+ * <pre>
+ * java MatchingBenchmark [per side] [reach in km]
+ * </pre>
+ */
+public class MatchingBenchmark {
+
+	public static void main(String[] args) {
+		int perSide = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		double reach = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+		double side = Math.sqrt(perSide) * 1.5;
+		Random random = new Random(42);
+		List<CandidateGraph.Edge> edges = edges(perSide, side, reach, random);
+		System.out.printf("%d drivers, %d riders in %.0f x %.0f km, %d feasible pairs%n", perSide, perSide, side, side, edges.size());
+
+		// warm up, then measure
+		MinCostMatching.solve(edges);
+		long start = System.nanoTime();
+		List<CandidateGraph.Edge> optimal = MinCostMatching.solve(edges);
+		long optimalNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		List<CandidateGraph.Edge> greedy = greedy(edges);
+		long greedyNanos = System.nanoTime() - start;
+
+		print("min-cost matching", optimal, optimalNanos);
+		print("greedy", greedy, greedyNanos);
+	}
+
+	/** Riders within reach of a driver, found through a grid of reach-sized cells. */
+	private static List<CandidateGraph.Edge> edges(int perSide, double side, double reach, Random random) {
+		int cells = Math.max(1, (int)(side / reach));
+		List<List<ParamData>> grid = new ArrayList<List<ParamData>>(cells * cells);
+		for(int i = 0; i < cells * cells; i++)
+			grid.add(new ArrayList<ParamData>());
+		for(int i = 0; i < perSide; i++) {
+			ParamData rider = request(perSide + i, 1, side, random);
+			grid.get(cell(rider.getX(0), cells, side) * cells + cell(rider.getY(0), cells, side)).add(rider);
+		}
+		List<CandidateGraph.Edge> edges = new ArrayList<CandidateGraph.Edge>();
+		for(int i = 0; i < perSide; i++) {
+			ParamData driver = request(i, 0, side, random);
+			int cx = cell(driver.getX(0), cells, side), cy = cell(driver.getY(0), cells, side);
+			for(int x = Math.max(0, cx - 1); x <= Math.min(cells - 1, cx + 1); x++) {
+				for(int y = Math.max(0, cy - 1); y <= Math.min(cells - 1, cy + 1); y++) {
+					for(ParamData rider : grid.get(x * cells + y)) {
+						double distance = Math.hypot(rider.getX(0) - driver.getX(0),
+								rider.getY(0) - driver.getY(0));
+						if(distance <= reach)
+							edges.add(new CandidateGraph.Edge(driver, rider, 2 * distance + random.nextDouble() * 4, null));
+					}
+				}
+			}
+		}
+		return edges;
+	}
+
+	private static ParamData request(long id, int type, double side, Random random) {
+		double x = random.nextDouble() * side, y = random.nextDouble() * side;
+		return new ParamData(id, type, 10, 3857, 0L, new double[] {x, y, x + 1, y + 1});
+	}
+
+	private static int cell(double v, int cells, double side) {
+		return Math.min(cells - 1, (int)(v / side * cells));
+	}
+
+	/** Cheapest edge first, skipping those with an end that is taken already. */
+	private static List<CandidateGraph.Edge> greedy(List<CandidateGraph.Edge> edges) {
+		List<CandidateGraph.Edge> sorted = new ArrayList<CandidateGraph.Edge>(edges);
+		Collections.sort(sorted, CandidateGraph.BY_DETOUR);
+		Set<ParamData> taken = new HashSet<ParamData>();
+		List<CandidateGraph.Edge> chosen = new ArrayList<CandidateGraph.Edge>();
+		for(CandidateGraph.Edge edge : sorted) {
+			if(!taken.contains(edge.driver) && !taken.contains(edge.rider)) {
+				taken.add(edge.driver);
+				taken.add(edge.rider);
+				chosen.add(edge);
+			}
+		}
+		return chosen;
+	}
+
+	private static void print(String name, List<CandidateGraph.Edge> matching, long nanos) {
+		double total = 0;
+		for(CandidateGraph.Edge edge : matching)
+			total += edge.detour;
+		System.out.printf("%-18s %6d pairs, total detour %10.1f, mean %.2f, %.1f ms%n", name, matching.size(), total,
+				matching.isEmpty() ? 0 : total / matching.size(), nanos / 1e6);
+	}
+}
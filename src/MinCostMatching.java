@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Min-cost maximum matching over the edges of a {@link CandidateGraph}: as many drivers as
+ * possible get a rider, and among the assignments that do, the one with the least total
+ * detour is chosen. Greedy first-come matching can give a rider to the first driver that can
+ * take them even when a later driver could have taken them for less and the first one could
+ * only have taken that rider; this finds the global optimum over everyone waiting.
+ * <p>
+ * Solved with successive shortest paths, adding one driver at a time as in the Hungarian
+ * method: Dijkstra over reduced costs finds the cheapest way to make room for the driver and
+ * stops as soon as it gets there. Pooled requests only have edges to requests near them, so
+ * that is usually a few hops away, and a search rarely touches more than a neighbourhood.
+ */
+public final class MinCostMatching {
+
+	private MinCostMatching() {
+	}
+
+	/** The chosen edges, at most one per driver and one per rider. */
+	public static List<CandidateGraph.Edge> solve(List<CandidateGraph.Edge> edges) {
+		return new Solver(edges).solve();
+	}
+
+	/** Drivers are nodes 0..drivers-1, riders follow them. */
+	private static class Solver {
+		final List<CandidateGraph.Edge> edges;
+		final int drivers;
+		final int nodes;
+		// edges by driver, as in a compressed sparse row matrix
+		final int[] first;
+		final int[] source;
+		final int[] target;
+		final double[] cost;
+		final int[] edgeOf;
+		// match[node] is the matched node, matchEdge[driver] the edge it was matched over
+		final int[] match;
+		final int[] matchEdge;
+		final double[] potential;
+		final double[] dist;
+		final NodeHeap heap = new NodeHeap();
+		// nodes given a distance by the current search
+		final int[] reached;
+		int reachedCount;
+		final int[] via;
+
+		Solver(List<CandidateGraph.Edge> edges) {
+			this.edges = edges;
+			Map<ParamData, Integer> driverIds = new IdentityHashMap<ParamData, Integer>();
+			Map<ParamData, Integer> riderIds = new IdentityHashMap<ParamData, Integer>();
+			int[] from = new int[edges.size()];
+			int[] to = new int[edges.size()];
+			double minCost = Double.POSITIVE_INFINITY;
+			for(int i = 0; i < edges.size(); i++) {
+				CandidateGraph.Edge edge = edges.get(i);
+				from[i] = id(driverIds, edge.driver);
+				to[i] = id(riderIds, edge.rider);
+				minCost = Math.min(minCost, edge.detour);
+			}
+			drivers = driverIds.size();
+			nodes = drivers + riderIds.size();
+			first = new int[drivers + 1];
+			for(int i = 0; i < from.length; i++)
+				first[from[i] + 1]++;
+			for(int d = 0; d < drivers; d++)
+				first[d + 1] += first[d];
+			source = new int[from.length];
+			target = new int[from.length];
+			cost = new double[from.length];
+			edgeOf = new int[from.length];
+			int[] next = Arrays.copyOf(first, drivers);
+			for(int i = 0; i < from.length; i++) {
+				int slot = next[from[i]]++;
+				source[slot] = from[i];
+				target[slot] = drivers + to[i];
+				// shifting every cost by the same amount changes every matching of a given size by
+				// the same total, and makes the costs non-negative for Dijkstra
+				cost[slot] = edges.get(i).detour - minCost;
+				edgeOf[slot] = i;
+			}
+			match = new int[nodes];
+			Arrays.fill(match, -1);
+			matchEdge = new int[drivers];
+			potential = new double[nodes];
+			dist = new double[nodes];
+			Arrays.fill(dist, Double.POSITIVE_INFINITY);
+			via = new int[nodes];
+			reached = new int[nodes];
+		}
+
+		private static int id(Map<ParamData, Integer> ids, ParamData data) {
+			Integer id = ids.get(data);
+			if(id == null) {
+				id = Integer.valueOf(ids.size());
+				ids.put(data, id);
+			}
+			return id.intValue();
+		}
+
+		List<CandidateGraph.Edge> solve() {
+			for(int d = 0; d < drivers; d++)
+				assign(d);
+			List<CandidateGraph.Edge> chosen = new ArrayList<CandidateGraph.Edge>();
+			for(int d = 0; d < drivers; d++) {
+				if(match[d] >= 0)
+					chosen.add(edges.get(edgeOf[matchEdge[d]]));
+			}
+			return chosen;
+		}
+
+		/**
+		 * Adds one driver to the matching. Dijkstra from the driver, alternating between
+		 * unmatched edges and matched edges taken backwards, finds the cheapest path to an
+		 * unmatched rider, and flipping the path assigns the driver without unassigning anyone.
+		 * When no unmatched rider can be reached, one driver must go without a rider; that is
+		 * the driver reached whose rider can be passed along the path for the least extra detour,
+		 * which may be this one. Either way the matching stays the cheapest for its size.
+		 */
+		private void assign(int start) {
+			heap.clear();
+			dist[start] = 0;
+			reached[reachedCount++] = start;
+			heap.push(0, start);
+			int found = -1;
+			double foundDist = 0;
+			while(!heap.isEmpty()) {
+				double d = heap.peekKey();
+				int node = heap.pop();
+				if(d > dist[node])
+					continue;
+				if(node >= drivers) {
+					if(match[node] < 0) {
+						found = node;
+						foundDist = d;
+						break;
+					}
+					// back over the matched edge, whose reduced cost is zero
+					relax(match[node], d, -1);
+				} else {
+					for(int e = first[node]; e < first[node + 1]; e++) {
+						if(e != matchEdge[node] || match[node] < 0)
+							relax(target[e], d + reducedCost(e), e);
+					}
+				}
+			}
+			if(found < 0) {
+				// every reachable node was reached; the potential of a driver minus that of start
+				// is what its detour would have to fall by for it to drop out
+				int dropped = start;
+				for(int i = 0; i < reachedCount; i++) {
+					int node = reached[i];
+					foundDist = Math.max(foundDist, dist[node]);
+					if(node < drivers && dist[node] + potential[node] < dist[dropped] + potential[dropped])
+						dropped = node;
+				}
+				if(dropped != start) {
+					found = match[dropped];
+					match[dropped] = -1;
+				}
+			}
+			// raising every potential by min(dist, foundDist) keeps the reduced costs non-negative
+			// and those along shortest paths zero; only differences matter, so unreached nodes can
+			// stay where they are
+			for(int i = 0; i < reachedCount; i++) {
+				int node = reached[i];
+				potential[node] += Math.min(dist[node], foundDist) - foundDist;
+				dist[node] = Double.POSITIVE_INFINITY;
+			}
+			reachedCount = 0;
+			for(int rider = found; rider >= 0; ) {
+				int e = via[rider];
+				int driver = source[e];
+				int previous = match[driver];
+				match[driver] = rider;
+				match[rider] = driver;
+				matchEdge[driver] = e;
+				rider = previous;
+			}
+		}
+
+		/** Never below zero; rounding could otherwise make a zero cost cycle negative. */
+		private double reducedCost(int e) {
+			return Math.max(0, cost[e] + potential[source[e]] - potential[target[e]]);
+		}
+
+		/** via holds the edge a rider was reached over. */
+		private void relax(int node, double d, int edge) {
+			if(d < dist[node]) {
+				if(dist[node] == Double.POSITIVE_INFINITY)
+					reached[reachedCount++] = node;
+				dist[node] = d;
+				via[node] = edge;
+				heap.push(d, node);
+			}
+		}
+	}
+}
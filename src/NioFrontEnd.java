@@ -0,0 +1,298 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking network layer of the server. One thread accepts connections and hands each
+ * to one of a few I/O threads, which multiplex all their connections over a Selector. An
+ * idle connection costs a selection key and a few small objects, no thread and no buffer:
+ * read buffers come from a {@link BufferPool} and are only held while a frame header is
+ * incomplete. Replies are queued as a small header plus the caller's payload buffers and
+ * written with gathering writes, several frames per system call, without copying them into
+ * one buffer first.
+ * <p>
+ * Complete frames are passed to the {@link Handler} on the I/O thread, which hands them on
+ * to wherever they are processed. Frames of one connection are handled independently;
+ * replies carry the request's correlation ID, so they may go out in any order.
+ */
+public class NioFrontEnd {
+
+	public interface Handler {
+		/** Called on the connection's I/O thread for every frame received; must not block. */
+		void handle(Connection connection, Protocol.Frame frame);
+
+		/** Called once when the connection is closed, on its I/O thread. */
+		void closed(Connection connection);
+	}
+
+	private final ServerSocketChannel server;
+	private final IoLoop[] loops;
+	private final Handler handler;
+	private final BufferPool buffers;
+	private volatile boolean running = true;
+
+	public NioFrontEnd(int port, int ioThreads, Handler handler, BufferPool buffers) throws IOException {
+		this.handler = handler;
+		this.buffers = buffers;
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(port), 1024);
+		loops = new IoLoop[Math.max(1, ioThreads)];
+		for(int i = 0; i < loops.length; i++)
+			loops[i] = new IoLoop();
+	}
+
+	/** Accepts connections until {@link #close()} is called. */
+	public void run() throws IOException {
+		for(int i = 0; i < loops.length; i++) {
+			Thread t = new Thread(loops[i], "network-io-" + (i + 1));
+			t.start();
+		}
+		int next = 0;
+		try {
+			while(running) {
+				SocketChannel channel;
+				try {
+					channel = server.accept();
+				} catch(ClosedChannelException e) {
+					break;
+				}
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				loops[next++ % loops.length].add(channel);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	public void close() {
+		running = false;
+		try {
+			server.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		for(IoLoop loop : loops)
+			loop.selector.wakeup();
+	}
+
+	/** One I/O thread and the connections registered with its selector. */
+	private class IoLoop implements Runnable {
+		final Selector selector;
+		final Queue<SocketChannel> added = new ConcurrentLinkedQueue<SocketChannel>();
+		final Queue<Connection> wantWrite = new ConcurrentLinkedQueue<Connection>();
+
+		IoLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void add(SocketChannel channel) {
+			added.add(channel);
+			selector.wakeup();
+		}
+
+		void requestWrite(Connection connection) {
+			wantWrite.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			List<Protocol.Frame> frames = new ArrayList<Protocol.Frame>();
+			while(running) {
+				try {
+					selector.select();
+				} catch(IOException e) {
+					e.printStackTrace();
+					break;
+				}
+				SocketChannel channel;
+				while((channel = added.poll()) != null) {
+					try {
+						Connection connection = new Connection(channel, this);
+						connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+					} catch(IOException e) {
+						closeQuietly(channel);
+					}
+				}
+				Connection pending;
+				while((pending = wantWrite.poll()) != null) {
+					if(pending.key != null && pending.key.isValid())
+						pending.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Connection connection = (Connection)key.attachment();
+					try {
+						if(key.isValid() && key.isReadable())
+							connection.onReadable(frames);
+						if(key.isValid() && key.isWritable())
+							connection.onWritable();
+					} catch(IOException e) {
+						connection.close();
+					}
+				}
+			}
+			for(SelectionKey key : selector.keys())
+				((Connection)key.attachment()).close();
+			try {
+				selector.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** One client connection. Only {@link #send} may be called from threads other than its I/O thread. */
+	public class Connection {
+		private final SocketChannel channel;
+		private final IoLoop loop;
+		private final SocketAddress remote;
+		private SelectionKey key;
+		private ByteBuffer readBuffer;
+		private final FrameDecoder decoder = new FrameDecoder();
+		private final Queue<ByteBuffer[]> outbound = new ConcurrentLinkedQueue<ByteBuffer[]>();
+		// buffers of the frames being written, only touched by the I/O thread
+		private ByteBuffer[] gather = new ByteBuffer[64];
+		private volatile boolean open = true;
+
+		Connection(SocketChannel channel, IoLoop loop) throws IOException {
+			this.channel = channel;
+			this.loop = loop;
+			this.remote = channel.getRemoteAddress();
+		}
+
+		public SocketAddress getRemoteAddress() {
+			return remote;
+		}
+
+		public boolean isOpen() {
+			return open;
+		}
+
+		/** Queues a frame for sending; safe to call from any thread. */
+		public void send(byte type, int correlationId, byte[] payload) {
+			send(type, correlationId, ByteBuffer.wrap(payload));
+		}
+
+		/**
+		 * Queues a frame whose payload is the remaining bytes of the given buffers, in order.
+		 * They are written as they are, so they must not be changed after this call.
+		 */
+		public void send(byte type, int correlationId, ByteBuffer... payload) {
+			ByteBuffer[] frame = new ByteBuffer[payload.length + 1];
+			int length = 0;
+			for(int i = 0; i < payload.length; i++) {
+				frame[i + 1] = payload[i];
+				length += payload[i].remaining();
+			}
+			frame[0] = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+			frame[0].put(Protocol.VERSION).put(type).putInt(correlationId).putInt(length);
+			frame[0].flip();
+			outbound.add(frame);
+			loop.requestWrite(this);
+		}
+
+		void onReadable(List<Protocol.Frame> frames) throws IOException {
+			if(readBuffer == null)
+				readBuffer = buffers.acquire();
+			int n = channel.read(readBuffer);
+			if(n < 0) {
+				close();
+				return;
+			}
+			readBuffer.flip();
+			frames.clear();
+			decoder.decode(readBuffer, frames);
+			readBuffer.compact();
+			if(readBuffer.position() == 0) {
+				buffers.release(readBuffer);
+				readBuffer = null;
+			}
+			for(Protocol.Frame frame : frames) {
+				try {
+					handler.handle(this, frame);
+				} catch(RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		void onWritable() throws IOException {
+			while(!outbound.isEmpty()) {
+				int n = 0;
+				for(ByteBuffer[] frame : outbound) {
+					if(n + frame.length > gather.length) {
+						if(n > 0)
+							break;
+						gather = new ByteBuffer[frame.length];
+					}
+					System.arraycopy(frame, 0, gather, n, frame.length);
+					n += frame.length;
+				}
+				channel.write(gather, 0, n);
+				// a gathering write stops at the first buffer it can't finish
+				boolean flushed = isWritten(gather, n);
+				Arrays.fill(gather, 0, n, null);
+				ByteBuffer[] head;
+				while((head = outbound.peek()) != null && isWritten(head, head.length))
+					outbound.poll();
+				if(!flushed)
+					return;
+			}
+			// send() re-arms OP_WRITE through the loop if more is queued after this
+			key.interestOps(SelectionKey.OP_READ);
+			if(!outbound.isEmpty())
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		private boolean isWritten(ByteBuffer[] buffers, int count) {
+			for(int i = 0; i < count; i++) {
+				if(buffers[i].hasRemaining())
+					return false;
+			}
+			return true;
+		}
+
+		void close() {
+			if(!open)
+				return;
+			open = false;
+			if(key != null)
+				key.cancel();
+			closeQuietly(channel);
+			if(readBuffer != null) {
+				buffers.release(readBuffer);
+				readBuffer = null;
+			}
+			try {
+				handler.closed(this);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
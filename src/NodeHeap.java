@@ -0,0 +1,68 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of (key, node) pairs on primitive arrays. A node may be pushed again with
+ * a lower key; callers skip the stale entries when they pop them.
+ */
+class NodeHeap {
+
+	private double[] keys = new double[64];
+	private int[] nodes = new int[64];
+	private int size;
+
+	void clear() {
+		size = 0;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	double peekKey() {
+		return size == 0 ? Double.POSITIVE_INFINITY : keys[0];
+	}
+
+	void push(double key, int node) {
+		if(size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			nodes = Arrays.copyOf(nodes, size * 2);
+		}
+		int i = size++;
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			if(keys[parent] <= key)
+				break;
+			keys[i] = keys[parent];
+			nodes[i] = nodes[parent];
+			i = parent;
+		}
+		keys[i] = key;
+		nodes[i] = node;
+	}
+
+	/** Removes the smallest entry and returns its node; its key is peekKey() before the call. */
+	int pop() {
+		int top = nodes[0];
+		size--;
+		if(size > 0) {
+			double key = keys[size];
+			int node = nodes[size];
+			int i = 0;
+			while(true) {
+				int child = 2 * i + 1;
+				if(child >= size)
+					break;
+				if(child + 1 < size && keys[child + 1] < keys[child])
+					child++;
+				if(keys[child] >= key)
+					break;
+				keys[i] = keys[child];
+				nodes[i] = nodes[child];
+				i = child;
+			}
+			keys[i] = key;
+			nodes[i] = node;
+		}
+		return top;
+	}
+}
@@ -0,0 +1,128 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary form of a {@link ParamData}, 54 bytes for a two-stop request:
+ * <pre>
+ * long    requestId
+ * byte    clientType
+ * int     timeTolerance (minutes)
+ * int     wkid
+ * int     departure (epoch minutes)
+ * byte    stop count n
+ * double  x, y for each of the n stops
+ * </pre>
+ * The ByteBuffer variants read and write the same layout in place, without stream objects
+ * or intermediate arrays. Reading rejects records that can't be a request: an unknown client
+ * type, fewer than two or more than MAX_STOPS stops, a tolerance outside 0 to
+ * MAX_TOLERANCE_MINUTES, or coordinates that aren't finite.
+ */
+public final class ParamCodec {
+
+	/** Highest number of stops a request may carry. */
+	public static final int MAX_STOPS = 16;
+	/** Longest detour a driver may accept, or ride a rider may accept, in minutes. */
+	public static final int MAX_TOLERANCE_MINUTES = 24 * 60;
+
+	private ParamCodec() {
+	}
+
+	public static void write(DataOutput out, ParamData data) throws IOException {
+		out.writeLong(data.getRequestId());
+		out.writeByte(data.getClientType());
+		out.writeInt(data.getTimeTolerance());
+		out.writeInt(data.getWkid());
+		out.writeInt((int)data.getDeparture());
+		out.writeByte(data.getStopCount());
+		for(int i = 0; i < data.getStopCount(); i++) {
+			out.writeDouble(data.getX(i));
+			out.writeDouble(data.getY(i));
+		}
+	}
+
+	public static ParamData read(DataInput in) throws IOException {
+		long requestId = in.readLong();
+		int clientType = in.readByte();
+		int timeTolerance = in.readInt();
+		int wkid = in.readInt();
+		long departure = in.readInt() & 0xffffffffL;
+		int stops = in.readUnsignedByte();
+		check(clientType, timeTolerance, stops);
+		double[] coords = new double[stops * 2];
+		for(int i = 0; i < coords.length; i++)
+			coords[i] = coordinate(in.readDouble());
+		return new ParamData(requestId, clientType, timeTolerance, wkid, departure, coords);
+	}
+
+	/** Bytes {@link #write} produces for data. */
+	public static int encodedSize(ParamData data) {
+		return 22 + 16 * data.getStopCount();
+	}
+
+	public static void write(ByteBuffer out, ParamData data) {
+		out.putLong(data.getRequestId());
+		out.put((byte)data.getClientType());
+		out.putInt(data.getTimeTolerance());
+		out.putInt(data.getWkid());
+		out.putInt((int)data.getDeparture());
+		out.put((byte)data.getStopCount());
+		for(int i = 0; i < data.getStopCount(); i++) {
+			out.putDouble(data.getX(i));
+			out.putDouble(data.getY(i));
+		}
+	}
+
+	/** Reads one record starting at the buffer's position, which is advanced past it. */
+	public static ParamData read(ByteBuffer in) throws IOException {
+		try {
+			long requestId = in.getLong();
+			int clientType = in.get();
+			int timeTolerance = in.getInt();
+			int wkid = in.getInt();
+			long departure = in.getInt() & 0xffffffffL;
+			int stops = in.get() & 0xff;
+			check(clientType, timeTolerance, stops);
+			double[] coords = new double[stops * 2];
+			for(int i = 0; i < coords.length; i++)
+				coords[i] = coordinate(in.getDouble());
+			return new ParamData(requestId, clientType, timeTolerance, wkid, departure, coords);
+		} catch(BufferUnderflowException e) {
+			throw new IOException("Truncated request");
+		}
+	}
+
+	private static void check(int clientType, int timeTolerance, int stops) throws IOException {
+		if(clientType != 0 && clientType != 1)
+			throw new IOException("Unknown client type: " + clientType);
+		if(timeTolerance < 0 || timeTolerance > MAX_TOLERANCE_MINUTES)
+			throw new IOException("Time tolerance out of range: " + timeTolerance);
+		if(stops < 2)
+			throw new IOException("Too few stops: " + stops);
+		if(stops > MAX_STOPS)
+			throw new IOException("Too many stops: " + stops);
+	}
+
+	private static double coordinate(double v) throws IOException {
+		if(Double.isNaN(v) || Double.isInfinite(v))
+			throw new IOException("Coordinate is not a number: " + v);
+		return v;
+	}
+
+	public static byte[] encode(ParamData data) {
+		ByteBuffer out = ByteBuffer.allocate(encodedSize(data));
+		write(out, data);
+		return out.array();
+	}
+
+	/** Reads a payload that holds exactly one record. */
+	public static ParamData decode(byte[] payload) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(payload);
+		ParamData data = read(in);
+		if(in.hasRemaining())
+			throw new IOException("Malformed request");
+		return data;
+	}
+}
@@ -1,16 +1,33 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import com.esri.core.geometry.Point;
 import com.esri.core.geometry.SpatialReference;
 import com.esri.core.map.Graphic;
 
 
+/**
+ * A driver's or rider's request. Only what matching needs is kept and sent: the stop
+ * coordinates, the WKID they are in, client type, tolerance, departure and request ID (see
+ * {@link ParamCodec}). The stop graphics and the spatial reference are rebuilt on first use,
+ * which only the map needs.
+ */
 public class ParamData implements
 java.io.Serializable {
-	private static final long serialVersionUID = 1L;
-	private Graphic[] stops;
+	private static final long serialVersionUID = 2L;
+	private static final Random ids = new Random(new SecureRandom().nextLong());
+	private long requestId;
+	private double[] coords; // x0, y0, x1, y1, ...
+	private int wkid;
 	private int clientType;
 	private int timeTolerance;
-	private String date;
-	private SpatialReference sPf;
-	private double drivingTime;
+	private long departure;
+	private transient double drivingTime = -1;
+	private transient Point[] points;
+	private transient Graphic[] stops;
+	private transient SpatialReference sPf;
 	
 	public ParamData(){
 	}
@@ -18,30 +35,96 @@ java.io.Serializable {
 	public ParamData(Graphic[] stops, int clientType, int timeTolerance, SpatialReference sPf, String date){
 		this.clientType=clientType;
 		this.timeTolerance=timeTolerance;
+		this.coords=new double[stops.length * 2];
+		for(int i = 0; i < stops.length; i++) {
+			Point p = (Point)stops[i].getGeometry();
+			coords[2 * i] = p.getX();
+			coords[2 * i + 1] = p.getY();
+		}
 		this.stops=stops;
 		this.sPf=sPf;
-		this.date=date;
+		this.wkid=sPf == null ? 0 : sPf.getID();
+		this.departure=DepartureTime.toEpochMinutes(date);
+		synchronized(ids) {
+			this.requestId=ids.nextLong();
+		}
+		this.drivingTime = -1;
+	}
+	
+	/** Used by {@link ParamCodec} when decoding. */
+	ParamData(long requestId, int clientType, int timeTolerance, int wkid, long departure, double[] coords){
+		this.requestId=requestId;
+		this.clientType=clientType;
+		this.timeTolerance=timeTolerance;
+		this.wkid=wkid;
+		this.departure=departure;
+		this.coords=coords;
 		this.drivingTime = -1;
 	}
+	/** Random ID chosen by the client, the same for every retry of this request. */
+	public long getRequestId(){
+		return requestId;
+	}
 	public int getClientType(){
 		return clientType;
 	}
+	/** Stops as graphics for the map; built from the coordinates on first use. */
 	public Graphic[] getStops(){
+		if(stops == null) {
+			Graphic[] graphics = new Graphic[getStopCount()];
+			for(int i = 0; i < graphics.length; i++)
+				graphics[i] = new Graphic(getStop(i), null);
+			stops = graphics;
+		}
 		return stops;
 	}
+	public int getStopCount(){
+		return coords.length / 2;
+	}
+	public Point getStop(int i){
+		if(points == null) {
+			Point[] p = new Point[getStopCount()];
+			for(int j = 0; j < p.length; j++)
+				p[j] = new Point(coords[2 * j], coords[2 * j + 1]);
+			points = p;
+		}
+		return points[i];
+	}
+	public double getX(int i){
+		return coords[2 * i];
+	}
+	public double getY(int i){
+		return coords[2 * i + 1];
+	}
 	public int getTimeTolerance(){
 		return timeTolerance;
 	}
+	public int getWkid(){
+		return wkid;
+	}
 	public SpatialReference getsPf(){
+		if(sPf == null && wkid != 0)
+			sPf = SpatialReference.create(wkid);
 		return sPf;
 	}
+	/** Departure in the client's format, e.g. "3,14,8am,20". */
 	public String getDate(){
-		return date;
+		return DepartureTime.format(departure);
 	}
+	/** Departure time in minutes since the epoch. */
+	public long getDeparture(){
+		return departure;
+	}
+	/** Minutes of the request's own route: a driver's trip alone, a rider's direct ride. */
 	public void setDrivingTime(double dtime){
 		this.drivingTime=dtime;
 	}
 	public double  getDrivingTime(){
 		return drivingTime;
 	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		drivingTime = -1;
+	}
 }
@@ -0,0 +1,15 @@
+/** Shortest travel-time queries between nodes of a {@link RoadGraph}. Implementations are thread safe. */
+public interface PathFinder {
+
+	/** Travel time in minutes, infinite when to can't be reached from from. */
+	double travelTime(int from, int to);
+
+	/** Nodes along the fastest path, from and to included, or null when there is none. */
+	int[] path(int from, int to);
+
+	/**
+	 * Travel times between hub and each of others, from hub when outbound and to it otherwise.
+	 * The search around the hub is done once for all of them.
+	 */
+	double[] travelTimes(int hub, int[] others, boolean outbound);
+}
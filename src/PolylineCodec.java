@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.Polyline;
+
+/**
+ * Compact binary form of a route {@link Polyline}. Coordinates are rounded to a precision
+ * level, each vertex is stored as its offset from the previous one, and offsets are written
+ * as zig-zag varints, so the short hops between neighbouring road vertices take one or two
+ * bytes instead of eight:
+ * <pre>
+ * byte    decimals     coordinates are multiples of 10^-decimals map units
+ * varint  path count
+ * for each path:
+ *   varint  point count
+ *   for each point: zig-zag varint dx, dy (from the previous point, across paths)
+ * </pre>
+ * In Web Mercator the levels are {@link #FINE} (10 cm), {@link #STANDARD} (1 m) and
+ * {@link #COARSE} (10 m); geographic coordinates need about 5 decimals for 1 m.
+ */
+public final class PolylineCodec {
+
+	public static final int FINE = 1;
+	public static final int STANDARD = 0;
+	public static final int COARSE = -1;
+
+	private PolylineCodec() {
+	}
+
+	public static byte[] encode(Polyline line, int decimals) {
+		double scale = Math.pow(10, decimals);
+		int paths = line.getPathCount();
+		Writer out = new Writer(8 + line.getPointCount() * 4);
+		out.put((byte)decimals);
+		out.varint(paths);
+		long lastX = 0, lastY = 0;
+		for(int p = 0; p < paths; p++) {
+			int start = line.getPathStart(p);
+			int end = line.getPathEnd(p);
+			out.varint(end - start);
+			for(int i = start; i < end; i++) {
+				Point point = line.getPoint(i);
+				long x = Math.round(point.getX() * scale);
+				long y = Math.round(point.getY() * scale);
+				out.varint(zigZag(x - lastX));
+				out.varint(zigZag(y - lastY));
+				lastX = x;
+				lastY = y;
+			}
+		}
+		return out.toByteArray();
+	}
+
+	public static Polyline decode(byte[] data) throws IOException {
+		return decode(ByteBuffer.wrap(data));
+	}
+
+	/** Reads one encoded polyline starting at the buffer's position, which is advanced past it. */
+	public static Polyline decode(ByteBuffer in) throws IOException {
+		try {
+			double unit = Math.pow(10, -in.get());
+			long paths = varint(in);
+			long x = 0, y = 0;
+			Polyline line = new Polyline();
+			for(long p = 0; p < paths; p++) {
+				long points = varint(in);
+				for(long i = 0; i < points; i++) {
+					x += unZigZag(varint(in));
+					y += unZigZag(varint(in));
+					if(i == 0)
+						line.startPath(x * unit, y * unit);
+					else
+						line.lineTo(x * unit, y * unit);
+				}
+			}
+			return line;
+		} catch(BufferUnderflowException e) {
+			throw new IOException("Truncated polyline");
+		}
+	}
+
+	private static long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static long varint(ByteBuffer in) throws IOException {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long)(b & 0x7f) << shift;
+			if(b >= 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/** Growable byte array; a ByteArrayOutputStream would synchronize on every byte. */
+	private static class Writer {
+		byte[] bytes;
+		int length;
+
+		Writer(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		void put(byte b) {
+			ensure(1);
+			bytes[length++] = b;
+		}
+
+		void varint(long v) {
+			ensure(10);
+			while((v & ~0x7fL) != 0) {
+				bytes[length++] = (byte)((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			bytes[length++] = (byte)v;
+		}
+
+		private void ensure(int more) {
+			if(bytes.length - length < more)
+				bytes = Arrays.copyOf(bytes, bytes.length * 2 + more);
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, length);
+		}
+	}
+}
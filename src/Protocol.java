@@ -0,0 +1,279 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.esri.core.geometry.Polyline;
+
+/**
+ * Wire format between {@link InfoSend} and {@link Server}. A connection stays open for any
+ * number of requests, and every message is one frame:
+ * <pre>
+ * byte    version       (VERSION)
+ * byte    type          (REGISTER, QUERY, REGISTER_BATCH, REPLY_*, NOTIFY_MATCHED)
+ * int     correlation   chosen by the client for a request, copied into its reply
+ * int     length        of the payload, big-endian
+ * byte[]  payload
+ * </pre>
+ * A client may have any number of requests in flight on one connection. The server
+ * answers them as they finish, which need not be the order they were sent in; the
+ * correlation ID tells which request a reply belongs to. Requests are encoded with
+ * {@link ParamCodec}. NOTIFY_MATCHED frames can arrive at any time and carry correlation
+ * ID {@link #NO_CORRELATION}.
+ */
+public final class Protocol {
+
+	public static final byte VERSION = 3;
+	public static final int HEADER_SIZE = 10;
+	/** Correlation ID of frames that don't answer a request. */
+	public static final int NO_CORRELATION = 0;
+	/** Most requests in one REGISTER_BATCH frame. */
+	public static final int MAX_BATCH = 256;
+	/** Largest payload accepted, so a corrupt length can't make the reader allocate gigabytes. */
+	public static final int MAX_PAYLOAD = 1 << 20;
+
+	/** Match the request and pool it when there is no match. Payload: a request. */
+	public static final byte REGISTER = 1;
+	/** Match the request without pooling it. Payload: a request. */
+	public static final byte QUERY = 2;
+	/**
+	 * REGISTER for several requests at once, answered with one REPLY_BATCH. Payload: request
+	 * count (short) followed by the requests.
+	 */
+	public static final byte REGISTER_BATCH = 3;
+	/**
+	 * Payload: the counterpart the request was matched with, optionally followed by the
+	 * shared route in {@link PolylineCodec} form.
+	 */
+	public static final byte REPLY_MATCHED = 10;
+	/** No match yet, the request was pooled. Empty payload. */
+	public static final byte REPLY_POOLED = 11;
+	/** No match for a query. Empty payload. */
+	public static final byte REPLY_NO_MATCH = 12;
+	/** Payload: UTF-8 error message. */
+	public static final byte REPLY_ERROR = 13;
+	/** The server is saturated and didn't look at the request. Payload: retry after, in milliseconds (int). */
+	public static final byte REPLY_BUSY = 14;
+	/**
+	 * Answer to REGISTER_BATCH, one reply per request in the same order. Payload: reply count
+	 * (short), then for each a type (byte), payload length (int) and payload.
+	 */
+	public static final byte REPLY_BATCH = 15;
+	/**
+	 * Sent by the server, unasked, when a pooled request gets matched. Payload: the pooled
+	 * request's ID (long) followed by a REPLY_MATCHED payload.
+	 */
+	public static final byte NOTIFY_MATCHED = 20;
+
+	private Protocol() {
+	}
+
+	/** Payload of the replies that carry nothing. */
+	public static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * One decoded frame. A REGISTER or QUERY frame may arrive with its request already decoded,
+	 * see {@link FrameDecoder}, in which case payload is null.
+	 */
+	public static class Frame {
+		public final byte type;
+		public final int correlationId;
+		public final byte[] payload;
+		public final ParamData request;
+
+		public Frame(byte type, int correlationId, byte[] payload) {
+			this.type = type;
+			this.correlationId = correlationId;
+			this.payload = payload;
+			this.request = null;
+		}
+
+		public Frame(byte type, int correlationId, ParamData request) {
+			this.type = type;
+			this.correlationId = correlationId;
+			this.payload = null;
+			this.request = request;
+		}
+	}
+
+	/** Next frame, or null when the peer closed the connection between frames. */
+	public static Frame read(DataInputStream in) throws IOException {
+		int version = in.read();
+		if(version < 0)
+			return null;
+		if(version != VERSION)
+			throw new IOException("Unsupported protocol version " + version);
+		byte type = in.readByte();
+		int correlationId = in.readInt();
+		int length = in.readInt();
+		if(length < 0 || length > MAX_PAYLOAD)
+			throw new IOException("Bad frame length " + length);
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return new Frame(type, correlationId, payload);
+	}
+
+	/** Writes one frame; the caller flushes. */
+	public static void write(DataOutputStream out, byte type, int correlationId, byte[] payload) throws IOException {
+		out.writeByte(VERSION);
+		out.writeByte(type);
+		out.writeInt(correlationId);
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+
+	public static byte[] encode(ParamData data) {
+		return ParamCodec.encode(data);
+	}
+
+	public static ParamData decode(byte[] payload) throws IOException {
+		return ParamCodec.decode(payload);
+	}
+
+	/** The request a REGISTER or QUERY frame carries. */
+	public static ParamData request(Frame frame) throws IOException {
+		return frame.request != null ? frame.request : decode(frame.payload);
+	}
+
+	public static byte[] encodeBatch(List<ParamData> batch) throws IOException {
+		if(batch.size() > MAX_BATCH)
+			throw new IOException("Batch of " + batch.size() + " requests, at most " + MAX_BATCH + " allowed");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(batch.size());
+		for(ParamData data : batch)
+			ParamCodec.write(out, data);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static List<ParamData> decodeBatch(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		int count = in.readUnsignedShort();
+		if(count > MAX_BATCH)
+			throw new IOException("Batch of " + count + " requests, at most " + MAX_BATCH + " allowed");
+		List<ParamData> batch = new ArrayList<ParamData>(count);
+		for(int i = 0; i < count; i++)
+			batch.add(ParamCodec.read(in));
+		return batch;
+	}
+
+	/** Requests in a REGISTER_BATCH payload, read without decoding them. */
+	public static int batchSize(byte[] payload) {
+		return payload.length < 2 ? 0 : ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+	}
+
+	/** REPLY_BATCH payload; the correlation IDs of the replies are not sent. */
+	public static byte[] encodeReplies(List<Frame> replies) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(replies.size());
+		for(Frame reply : replies) {
+			out.writeByte(reply.type);
+			out.writeInt(reply.payload.length);
+			out.write(reply.payload);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static List<MatchReply> decodeReplies(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		int count = in.readUnsignedShort();
+		List<MatchReply> replies = new ArrayList<MatchReply>(count);
+		for(int i = 0; i < count; i++) {
+			byte type = in.readByte();
+			int length = in.readInt();
+			if(length < 0 || length > payload.length)
+				throw new IOException("Bad reply length " + length);
+			byte[] reply = new byte[length];
+			in.readFully(reply);
+			replies.add(toReply(new Frame(type, NO_CORRELATION, reply)));
+		}
+		return replies;
+	}
+
+	/**
+	 * REPLY_MATCHED payload; route is an encoded polyline, or null. The partner's request ID
+	 * is sent as 0: it is theirs to send again with, not the other side's.
+	 */
+	public static byte[] encodeMatch(ParamData partner, byte[] route) {
+		ByteBuffer out = ByteBuffer.allocate(ParamCodec.encodedSize(partner) + (route == null ? 0 : route.length));
+		writePartner(out, partner);
+		if(route != null)
+			out.put(route);
+		return out.array();
+	}
+
+	public static byte[] encodeNotification(long requestId, ParamData partner, byte[] route) {
+		ByteBuffer out = ByteBuffer.allocate(8 + ParamCodec.encodedSize(partner) + (route == null ? 0 : route.length));
+		out.putLong(requestId);
+		writePartner(out, partner);
+		if(route != null)
+			out.put(route);
+		return out.array();
+	}
+
+	private static void writePartner(ByteBuffer out, ParamData partner) {
+		int start = out.position();
+		ParamCodec.write(out, partner);
+		out.putLong(start, 0L);
+	}
+
+	/** ID of the pooled request a NOTIFY_MATCHED payload is about. */
+	public static long notifiedRequestId(byte[] payload) throws IOException {
+		return new DataInputStream(new ByteArrayInputStream(payload)).readLong();
+	}
+
+	/** Counterpart and route carried by a NOTIFY_MATCHED payload, as a MATCHED reply. */
+	public static MatchReply notifiedMatch(byte[] payload) throws IOException {
+		return decodeMatch(ByteBuffer.wrap(payload, 8, payload.length - 8));
+	}
+
+	private static MatchReply decodeMatch(ByteBuffer in) throws IOException {
+		ParamData partner = ParamCodec.read(in);
+		Polyline route = in.hasRemaining() ? PolylineCodec.decode(in) : null;
+		return MatchReply.matched(partner, route);
+	}
+
+	public static byte[] encodeError(String message) {
+		try {
+			return (message == null ? "" : message).getBytes("UTF-8");
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String decodeError(byte[] payload) throws IOException {
+		return new String(payload, "UTF-8");
+	}
+
+	public static byte[] encodeBusy(int retryAfterMillis) {
+		return new byte[] {(byte)(retryAfterMillis >>> 24), (byte)(retryAfterMillis >>> 16), (byte)(retryAfterMillis >>> 8), (byte)retryAfterMillis};
+	}
+
+	public static int decodeBusy(byte[] payload) throws IOException {
+		return new DataInputStream(new ByteArrayInputStream(payload)).readInt();
+	}
+
+	public static MatchReply toReply(Frame frame) throws IOException {
+		switch(frame.type) {
+		case REPLY_MATCHED:
+			return decodeMatch(ByteBuffer.wrap(frame.payload));
+		case REPLY_POOLED:
+			return new MatchReply(MatchReply.Status.POOLED, null, null);
+		case REPLY_NO_MATCH:
+			return new MatchReply(MatchReply.Status.NO_MATCH, null, null);
+		case REPLY_ERROR:
+			return new MatchReply(MatchReply.Status.ERROR, null, decodeError(frame.payload));
+		case REPLY_BUSY:
+			return new MatchReply(MatchReply.Status.BUSY, null, null, decodeBusy(frame.payload));
+		default:
+			throw new IOException("Unexpected frame type " + frame.type);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcomes of recently received requests, by request ID, so that a request sent again (after
+ * a lost connection, or by a client retry) is answered with the original reply instead of
+ * being matched, solved or pooled a second time. A copy that arrives while the original is
+ * still being matched waits for its reply.
+ * <p>
+ * Bounded like {@link RouteCache}: the oldest entries are dropped when the table is full, and
+ * entries older than ttlMillis count as unknown.
+ */
+public class RecentRequests {
+
+	private final long ttlMillis;
+	private final LinkedHashMap<Long, Outcome> entries;
+	private final AtomicLong duplicates = new AtomicLong();
+
+	public RecentRequests(final int capacity, long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<Long, Outcome>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Outcome> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Records that a request is being processed. Returns null when it is new, in which case the
+	 * caller processes it and then {@link #complete completes} the outcome it passed in.
+	 * Otherwise returns the earlier outcome to answer from.
+	 */
+	public Outcome begin(long requestId, Outcome outcome) {
+		Long id = Long.valueOf(requestId);
+		synchronized(entries) {
+			Outcome earlier = entries.get(id);
+			// a QUERY and a later REGISTER of the same request are different requests
+			if(earlier != null && earlier.requestType == outcome.requestType
+					&& System.currentTimeMillis() - earlier.created <= ttlMillis) {
+				duplicates.incrementAndGet();
+				return earlier;
+			}
+			entries.put(id, outcome);
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the reply of a request begun with {@link #begin}. An error reply is handed to the
+	 * copies already waiting, but not kept, so a later retry is processed again.
+	 */
+	public void complete(long requestId, Outcome outcome, Protocol.Frame reply) {
+		if(reply.type == Protocol.REPLY_ERROR) {
+			synchronized(entries) {
+				if(entries.get(Long.valueOf(requestId)) == outcome)
+					entries.remove(Long.valueOf(requestId));
+			}
+		}
+		outcome.complete(reply);
+	}
+
+	/** Replaces the outcome of a pooled REGISTER once it has been matched; its client stays. */
+	public void matched(long requestId, Protocol.Frame reply) {
+		Long id = Long.valueOf(requestId);
+		synchronized(entries) {
+			Outcome earlier = entries.get(id);
+			Outcome outcome = new Outcome(Protocol.REGISTER, earlier != null ? earlier.client : null);
+			outcome.complete(reply);
+			entries.put(id, outcome);
+		}
+	}
+
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	@Override
+	public String toString() {
+		int size;
+		synchronized(entries) {
+			size = entries.size();
+		}
+		return "RecentRequests[size=" + size + ", duplicates=" + duplicates.get() + "]";
+	}
+
+	/** The reply to one request, once there is one, and the client that sent it. */
+	public static class Outcome {
+		final byte requestType;
+		final Object client;
+		final long created = System.currentTimeMillis();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Protocol.Frame reply;
+
+		public Outcome(byte requestType, Object client) {
+			this.requestType = requestType;
+			this.client = client;
+		}
+
+		/** Whether the request came from client; an outcome whose client is unknown is nobody's. */
+		public boolean isFrom(Object client) {
+			return this.client != null && this.client.equals(client);
+		}
+
+		void complete(Protocol.Frame reply) {
+			this.reply = reply;
+			done.countDown();
+		}
+
+		/** The reply, waiting up to timeoutMillis for it; null on timeout. */
+		public Protocol.Frame await(long timeoutMillis) throws InterruptedException {
+			done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+			return reply;
+		}
+	}
+}
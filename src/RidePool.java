@@ -0,0 +1,236 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pooled drivers or riders waiting for a match. Entries are bucketed by departure slot, kept
+ * sorted by slot start (in epoch minutes) so that a departure window only touches the
+ * buckets it covers, and indexed by location within each bucket. Riders are indexed at their
+ * pickup point. Drivers are indexed by the bounding box of their {@link DetourEllipse}, so a
+ * rider only has to look at the drivers covering the cell of their pickup.
+ * <p>
+ * Safe for concurrent use without a pool-wide lock. Inserts into different buckets, or
+ * different cells of a bucket, don't contend, and {@link #nearby} takes no locks. An entry
+ * stays in the pool until it is {@link #claim claimed}, which succeeds for one caller only.
+ * Entries are identified by request ID, so a request sent again is only pooled once.
+ * <p>
+ * Every entry has a timer on a {@link TimingWheel} for keepMinutes past its departure, which
+ * a claim cancels. {@link #expire} claims the entries whose timer fired, and drops the
+ * buckets of departures that are over, so the pool doesn't grow with time.
+ */
+public class RidePool {
+
+	private final double cellSize;
+	private final double maxSpeed;
+	private final int slotMinutes;
+	private final int keepMinutes;
+	private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<Long, Bucket>();
+	// unclaimed entries by request ID
+	private final ConcurrentHashMap<Long, Entry> live = new ConcurrentHashMap<Long, Entry>();
+	private final TimingWheel<ParamData> expiry = new TimingWheel<ParamData>(TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis()));
+
+	/**
+	 * @param cellSize grid cell size in map units
+	 * @param maxSpeed fastest possible network speed in map units per minute
+	 * @param slotMinutes width of one departure bucket
+	 * @param keepMinutes how long after its departure an entry expires
+	 */
+	public RidePool(double cellSize, double maxSpeed, int slotMinutes, int keepMinutes) {
+		this.cellSize = cellSize;
+		this.maxSpeed = maxSpeed;
+		this.slotMinutes = slotMinutes;
+		this.keepMinutes = keepMinutes;
+	}
+
+	/**
+	 * An unclaimed entry. Its expiry timer is armed once it is in its bucket, and it can't be
+	 * claimed before then: a timer whose deadline has passed fires at the next tick, and a
+	 * claim that came first would miss the bucket entry.
+	 */
+	private static final class Entry {
+		final ParamData data;
+		volatile TimingWheel.Timer<ParamData> timer;
+
+		Entry(ParamData data) {
+			this.data = data;
+		}
+	}
+
+	/** Pools the entry; returns false when a request with its ID is pooled already. */
+	public boolean add(ParamData data) {
+		Entry entry = new Entry(data);
+		if(live.putIfAbsent(Long.valueOf(data.getRequestId()), entry) != null)
+			return false;
+		Long slot = Long.valueOf(slot(data.getDeparture()));
+		Bucket bucket = buckets.get(slot);
+		if(bucket == null) {
+			Bucket created = new Bucket();
+			bucket = buckets.putIfAbsent(slot, created);
+			if(bucket == null)
+				bucket = created;
+		}
+		bucket.add(data);
+		entry.timer = expiry.schedule(data, data.getDeparture() + keepMinutes);
+		return true;
+	}
+
+	/** Whether a request with this ID is pooled and unclaimed. */
+	public boolean contains(long requestId) {
+		return live.containsKey(Long.valueOf(requestId));
+	}
+
+	/**
+	 * Takes the entry out of the pool. Returns false when it is no longer pooled, e.g.
+	 * because another request claimed it first, or is still being pooled.
+	 */
+	public boolean claim(ParamData data) {
+		Long id = Long.valueOf(data.getRequestId());
+		Entry entry = live.get(id);
+		if(entry == null || entry.data != data || entry.timer == null || !live.remove(id, entry))
+			return false;
+		expiry.cancel(entry.timer);
+		Bucket bucket = buckets.get(Long.valueOf(slot(data.getDeparture())));
+		if(bucket != null)
+			bucket.remove(data);
+		return true;
+	}
+
+	/**
+	 * Claims the entries that expired by the given epoch minute and returns them, so that the
+	 * caller can drop what it keeps for them. Buckets whose entries have all expired are
+	 * dropped once empty.
+	 */
+	public List<ParamData> expire(long now) {
+		List<ParamData> expired = new ArrayList<ParamData>();
+		for(ParamData data : expiry.advance(now)) {
+			if(claim(data))
+				expired.add(data);
+		}
+		for(Map.Entry<Long, Bucket> entry : buckets.headMap(Long.valueOf(now - keepMinutes - slotMinutes), true).entrySet()) {
+			// an entry added to it meanwhile left long ago, and still expires by its timer
+			if(entry.getValue().size.get() == 0)
+				buckets.remove(entry.getKey(), entry.getValue());
+		}
+		return expired;
+	}
+
+	/** Unclaimed entries. */
+	public int size() {
+		return live.size();
+	}
+
+	/**
+	 * Unclaimed entries departing within windowMinutes of the given request, of the opposite
+	 * type, whose rider stops lie inside the driver's detour ellipse.
+	 */
+	public List<ParamData> nearby(ParamData other, int windowMinutes) {
+		List<ParamData> found = new ArrayList<ParamData>();
+		for(Bucket bucket : window(other.getDeparture(), windowMinutes).values())
+			bucket.nearby(other, windowMinutes, found);
+		return found;
+	}
+
+	/**
+	 * Entries in the departure slots that overlap windowMinutes around the given departure;
+	 * the slots at either end may hold some departing outside it.
+	 */
+	public int size(long departure, int windowMinutes) {
+		int size = 0;
+		for(Bucket bucket : window(departure, windowMinutes).values())
+			size += bucket.size.get();
+		return size;
+	}
+
+	private ConcurrentNavigableMap<Long, Bucket> window(long departure, int windowMinutes) {
+		return buckets.subMap(Long.valueOf(slot(departure - windowMinutes)), true,
+				Long.valueOf(slot(departure + windowMinutes)), true);
+	}
+
+	private long slot(long minute) {
+		return Math.floorDiv(minute, (long)slotMinutes) * slotMinutes;
+	}
+
+	private boolean isLive(ParamData data) {
+		Entry entry = live.get(Long.valueOf(data.getRequestId()));
+		return entry != null && entry.data == data;
+	}
+
+	private static boolean inWindow(ParamData data, ParamData other, int windowMinutes) {
+		return Math.abs(data.getDeparture() - other.getDeparture()) <= windowMinutes;
+	}
+
+	private static boolean reaches(DetourEllipse ellipse, ParamData rider) {
+		for(int i = 0; i < rider.getStopCount(); i++) {
+			if(!ellipse.contains(rider.getX(i), rider.getY(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/** Entries of one departure slot. */
+	private class Bucket {
+		private final GridIndex<ParamData> index = new GridIndex<ParamData>(cellSize);
+		private final List<ParamData> unbounded = new CopyOnWriteArrayList<ParamData>();
+		final AtomicInteger size = new AtomicInteger();
+
+		void add(ParamData data) {
+			if(data.getClientType() == 0) {
+				DetourEllipse ellipse = new DetourEllipse(data, maxSpeed);
+				if(!ellipse.isBounded())
+					unbounded.add(data);
+				else {
+					double[] b = ellipse.bounds();
+					index.insert(data, b[0], b[1], b[2], b[3]);
+				}
+			} else {
+				index.insert(data, data.getX(0), data.getY(0), data.getX(0), data.getY(0));
+			}
+			size.incrementAndGet();
+		}
+
+		void remove(ParamData data) {
+			if(data.getClientType() == 0) {
+				DetourEllipse ellipse = new DetourEllipse(data, maxSpeed);
+				if(!ellipse.isBounded())
+					unbounded.remove(data);
+				else {
+					double[] b = ellipse.bounds();
+					index.remove(data, b[0], b[1], b[2], b[3]);
+				}
+			} else {
+				index.remove(data, data.getX(0), data.getY(0), data.getX(0), data.getY(0));
+			}
+			size.decrementAndGet();
+		}
+
+		/** Whole slots are looked at, so the window is checked per entry. */
+		void nearby(ParamData other, int windowMinutes, List<ParamData> found) {
+			if(other.getClientType() == 0) {
+				DetourEllipse ellipse = new DetourEllipse(other, maxSpeed);
+				List<ParamData> riders;
+				if(ellipse.isBounded()) {
+					double[] b = ellipse.bounds();
+					riders = index.query(b[0], b[1], b[2], b[3]);
+				} else
+					riders = index.all();
+				for(ParamData rider : riders) {
+					if(isLive(rider) && inWindow(rider, other, windowMinutes) && reaches(ellipse, rider))
+						found.add(rider);
+				}
+			} else {
+				List<ParamData> drivers = index.query(other.getX(0), other.getY(0), other.getX(0), other.getY(0));
+				drivers.addAll(unbounded);
+				for(ParamData driver : drivers) {
+					if(isLive(driver) && inWindow(driver, other, windowMinutes) && reaches(new DetourEllipse(driver, maxSpeed), other))
+						found.add(driver);
+				}
+			}
+		}
+	}
+}
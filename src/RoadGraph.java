@@ -0,0 +1,252 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Directed road network held in compressed arrays, loaded from a text file with one record
+ * per line:
+ * <pre>
+ * # comment
+ * wkid 102100
+ * v &lt;id&gt; &lt;x&gt; &lt;y&gt;
+ * e &lt;from&gt; &lt;to&gt; &lt;minutes&gt; [oneway]
+ * </pre>
+ * Coordinates are in the map units of the WKID. Edges are two-way unless marked oneway.
+ */
+public class RoadGraph {
+
+	private final int wkid;
+	private final double[] x, y;
+	// forward adjacency: edges leaving node n are outStart[n] .. outStart[n + 1] - 1
+	private final int[] outStart, outTo;
+	private final double[] outTime;
+	// backward adjacency: edges entering node n, for searches run from the target
+	private final int[] inStart, inFrom;
+	private final double[] inTime;
+	private final double maxSpeed;
+	private final GridIndex<Integer> nodeIndex;
+	private final double cellSize;
+	private double minX, minY, maxX, maxY;
+
+	public RoadGraph(int wkid, double[] x, double[] y, int[] from, int[] to, double[] minutes) {
+		this.wkid = wkid;
+		this.x = x;
+		this.y = y;
+		int n = x.length;
+		outStart = new int[n + 1];
+		outTo = new int[from.length];
+		outTime = new double[from.length];
+		inStart = new int[n + 1];
+		inFrom = new int[from.length];
+		inTime = new double[from.length];
+		for(int i = 0; i < from.length; i++) {
+			outStart[from[i] + 1]++;
+			inStart[to[i] + 1]++;
+		}
+		for(int i = 0; i < n; i++) {
+			outStart[i + 1] += outStart[i];
+			inStart[i + 1] += inStart[i];
+		}
+		int[] outFill = Arrays.copyOf(outStart, n);
+		int[] inFill = Arrays.copyOf(inStart, n);
+		double speed = 0;
+		for(int i = 0; i < from.length; i++) {
+			int o = outFill[from[i]]++;
+			outTo[o] = to[i];
+			outTime[o] = minutes[i];
+			int r = inFill[to[i]]++;
+			inFrom[r] = from[i];
+			inTime[r] = minutes[i];
+			if(minutes[i] > 0)
+				speed = Math.max(speed, Geo.distance(x[from[i]], y[from[i]], x[to[i]], y[to[i]]) / minutes[i]);
+		}
+		maxSpeed = speed;
+
+		minX = minY = Double.MAX_VALUE;
+		maxX = maxY = -Double.MAX_VALUE;
+		for(int i = 0; i < n; i++) {
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		// about one node per cell
+		double extent = Math.max(maxX - minX, maxY - minY);
+		cellSize = n == 0 || extent <= 0 ? 1 : extent / Math.sqrt(n);
+		nodeIndex = new GridIndex<Integer>(cellSize);
+		for(int i = 0; i < n; i++)
+			nodeIndex.insert(Integer.valueOf(i), x[i], y[i], x[i], y[i]);
+	}
+
+	public static RoadGraph load(File file) throws IOException {
+		int wkid = 0;
+		Map<Long, Integer> ids = new HashMap<Long, Integer>();
+		List<double[]> nodes = new ArrayList<double[]>();
+		List<long[]> edgeEnds = new ArrayList<long[]>();
+		List<Double> edgeTimes = new ArrayList<Double>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNo = 0;
+			while((line = in.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] f = line.split("\\s+");
+				try {
+					if(f[0].equals("wkid"))
+						wkid = Integer.parseInt(f[1]);
+					else if(f[0].equals("v")) {
+						ids.put(Long.valueOf(f[1]), Integer.valueOf(nodes.size()));
+						nodes.add(new double[] {Double.parseDouble(f[2]), Double.parseDouble(f[3])});
+					} else if(f[0].equals("e")) {
+						long a = Long.parseLong(f[1]), b = Long.parseLong(f[2]);
+						double t = Double.parseDouble(f[3]);
+						edgeEnds.add(new long[] {a, b});
+						edgeTimes.add(Double.valueOf(t));
+						if(f.length < 5 || !f[4].equals("oneway")) {
+							edgeEnds.add(new long[] {b, a});
+							edgeTimes.add(Double.valueOf(t));
+						}
+					} else
+						throw new IOException("Unknown record '" + f[0] + "'");
+				} catch(RuntimeException e) {
+					throw new IOException(file + ":" + lineNo + ": bad line: " + line, e);
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		double[] x = new double[nodes.size()], y = new double[nodes.size()];
+		for(int i = 0; i < x.length; i++) {
+			x[i] = nodes.get(i)[0];
+			y[i] = nodes.get(i)[1];
+		}
+		int[] from = new int[edgeEnds.size()], to = new int[edgeEnds.size()];
+		double[] minutes = new double[edgeEnds.size()];
+		for(int i = 0; i < from.length; i++) {
+			Integer a = ids.get(Long.valueOf(edgeEnds.get(i)[0]));
+			Integer b = ids.get(Long.valueOf(edgeEnds.get(i)[1]));
+			if(a == null || b == null)
+				throw new IOException(file + ": edge refers to unknown node " + (a == null ? edgeEnds.get(i)[0] : edgeEnds.get(i)[1]));
+			from[i] = a.intValue();
+			to[i] = b.intValue();
+			minutes[i] = edgeTimes.get(i).doubleValue();
+		}
+		return new RoadGraph(wkid, x, y, from, to, minutes);
+	}
+
+	/** Node closest to the given point, or -1 when the graph is empty. */
+	public int nearestNode(double px, double py) {
+		if(x.length == 0)
+			return -1;
+		// any node outside the searched square is further than r, so stop once the best
+		// node found is within r; a square covering the whole graph finds every node
+		double reach = Math.max(Math.max(Math.abs(px - minX), Math.abs(px - maxX)),
+				Math.max(Math.abs(py - minY), Math.abs(py - maxY)));
+		for(double r = cellSize; ; r *= 2) {
+			int best = -1;
+			double bestDistance = Double.MAX_VALUE;
+			for(Integer node : nodeIndex.query(px - r, py - r, px + r, py + r)) {
+				double d = Geo.distance(px, py, x[node.intValue()], y[node.intValue()]);
+				if(d < bestDistance) {
+					bestDistance = d;
+					best = node.intValue();
+				}
+			}
+			if(best >= 0 && (bestDistance <= r || r >= reach))
+				return best;
+		}
+	}
+
+	/** Time of the fastest edge from a to b, infinite when they aren't adjacent. */
+	public double edgeTime(int a, int b) {
+		double best = Double.POSITIVE_INFINITY;
+		for(int e = outStart[a]; e < outStart[a + 1]; e++) {
+			if(outTo[e] == b)
+				best = Math.min(best, outTime[e]);
+		}
+		return best;
+	}
+
+	public int getWkid() {
+		return wkid;
+	}
+
+	public int nodeCount() {
+		return x.length;
+	}
+
+	public int edgeCount() {
+		return outTo.length;
+	}
+
+	/**
+	 * Hash of every edge's endpoints and travel time, to tell whether data derived from a
+	 * graph, like a {@link ContractionHierarchy}, was built from this one.
+	 */
+	public long checksum() {
+		long hash = 0xcbf29ce484222325L;
+		for(int node = 0; node < x.length; node++) {
+			for(int e = outStart[node]; e < outStart[node + 1]; e++) {
+				hash = (hash ^ node) * 0x100000001b3L;
+				hash = (hash ^ outTo[e]) * 0x100000001b3L;
+				hash = (hash ^ Double.doubleToLongBits(outTime[e])) * 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	public double getX(int node) {
+		return x[node];
+	}
+
+	public double getY(int node) {
+		return y[node];
+	}
+
+	/** Highest speed on any edge, in map units per minute. */
+	public double getMaxSpeed() {
+		return maxSpeed;
+	}
+
+	public int outStart(int node) {
+		return outStart[node];
+	}
+
+	public int outEnd(int node) {
+		return outStart[node + 1];
+	}
+
+	public int outTo(int edge) {
+		return outTo[edge];
+	}
+
+	public double outTime(int edge) {
+		return outTime[edge];
+	}
+
+	public int inStart(int node) {
+		return inStart[node];
+	}
+
+	public int inEnd(int node) {
+		return inStart[node + 1];
+	}
+
+	public int inFrom(int edge) {
+		return inFrom[edge];
+	}
+
+	public double inTime(int edge) {
+		return inTime[edge];
+	}
+}
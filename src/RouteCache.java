@@ -0,0 +1,120 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.SpatialReference;
+
+/**
+ * Bounded cache of solved routes. Stops are snapped to a grid of gridSize map units, so two
+ * requests whose stops are a few metres apart share an entry. Entries are dropped when the
+ * cache is full (least recently used first) or when they are older than ttlMillis.
+ */
+public class RouteCache<V> {
+
+	private final double gridSize;
+	private final long ttlMillis;
+	private final LinkedHashMap<Key, CachedRoute<V>> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public RouteCache(double gridSize, final int capacity, long ttlMillis) {
+		this.gridSize = gridSize;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<Key, CachedRoute<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedRoute<V>> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public Key key(Point[] stops, SpatialReference sRef) {
+		long[] cells = new long[stops.length * 2];
+		for(int i = 0; i < stops.length; i++) {
+			Point p = stops[i];
+			cells[2 * i] = Math.round(p.getX() / gridSize);
+			cells[2 * i + 1] = Math.round(p.getY() / gridSize);
+		}
+		return new Key(cells, sRef == null ? 0 : sRef.getID());
+	}
+
+	public V get(Key key) {
+		CachedRoute<V> entry;
+		synchronized(entries) {
+			entry = entries.get(key);
+			if(entry != null && System.currentTimeMillis() - entry.created > ttlMillis) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if(entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	public void put(Key key, V value) {
+		synchronized(entries) {
+			entries.put(key, new CachedRoute<V>(value, System.currentTimeMillis()));
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		int size;
+		synchronized(entries) {
+			size = entries.size();
+		}
+		return "RouteCache[size=" + size + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+	}
+
+	private static class CachedRoute<V> {
+		final V value;
+		final long created;
+
+		CachedRoute(V value, long created) {
+			this.value = value;
+			this.created = created;
+		}
+	}
+
+	/** Snapped stop sequence plus the WKID of the spatial reference the stops are in. */
+	public static final class Key {
+		private final long[] cells;
+		private final int wkid;
+		private final int hash;
+
+		Key(long[] cells, int wkid) {
+			this.cells = cells;
+			this.wkid = wkid;
+			this.hash = 31 * Arrays.hashCode(cells) + wkid;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+			Key other = (Key)o;
+			return wkid == other.wkid && Arrays.equals(cells, other.cells);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+import com.esri.core.geometry.Polyline;
+
+/** Travel time and geometry of one solved route. */
+public class RouteSolution {
+
+	public static final RouteSolution UNREACHABLE = new RouteSolution(Double.POSITIVE_INFINITY, null);
+
+	private final double minutes;
+	private final Polyline geometry;
+
+	public RouteSolution(double minutes, Polyline geometry) {
+		this.minutes = minutes;
+		this.geometry = geometry;
+	}
+
+	public double getMinutes() {
+		return minutes;
+	}
+
+	/** The route's shape, or null when the engine doesn't provide one. */
+	public Polyline getGeometry() {
+		return geometry;
+	}
+}
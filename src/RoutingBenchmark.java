@@ -0,0 +1,112 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares query times of {@link BidirectionalDijkstra} and {@link ContractionHierarchy} on
+ * the same random node pairs, and checks that both return the same travel times.
+ * <pre>
+ * java RoutingBenchmark [road graph file [hierarchy file]] [queries]
+ * </pre>
+ * Without a graph file a synthetic grid city is generated.
+ */
+public class RoutingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int queries = 10000;
+		RoadGraph graph;
+		ContractionHierarchy ch = null;
+		int next = 0;
+		if(args.length > next && !isNumber(args[next])) {
+			graph = RoadGraph.load(new File(args[next++]));
+			if(args.length > next && !isNumber(args[next]))
+				ch = ContractionHierarchy.load(new File(args[next++]));
+		} else
+			graph = gridCity(150, 42);
+		if(args.length > next)
+			queries = Integer.parseInt(args[next]);
+		System.out.println("Graph: " + graph.nodeCount() + " nodes, " + graph.edgeCount() + " edges");
+		if(ch != null && !ch.matches(graph)) {
+			System.out.println("The hierarchy was built from a different graph, building it again.");
+			ch = null;
+		}
+
+		if(ch == null) {
+			long start = System.nanoTime();
+			ch = ContractionHierarchy.build(graph);
+			System.out.println("Contraction took " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
+
+		Random random = new Random(7);
+		int[] from = new int[queries], to = new int[queries];
+		for(int i = 0; i < queries; i++) {
+			from[i] = random.nextInt(graph.nodeCount());
+			to[i] = random.nextInt(graph.nodeCount());
+		}
+		PathFinder dijkstra = new BidirectionalDijkstra(graph);
+		// warm up both before timing
+		run(dijkstra, from, to, Math.min(queries, 1000));
+		run(ch, from, to, Math.min(queries, 1000));
+
+		long start = System.nanoTime();
+		double[] expected = run(dijkstra, from, to, queries);
+		long dijkstraNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		double[] actual = run(ch, from, to, queries);
+		long chNanos = System.nanoTime() - start;
+
+		int mismatches = 0;
+		for(int i = 0; i < queries; i++) {
+			if(Math.abs(expected[i] - actual[i]) > 1e-6 && !(Double.isInfinite(expected[i]) && Double.isInfinite(actual[i])))
+				mismatches++;
+		}
+		System.out.printf("Bidirectional Dijkstra: %.1f us/query%n", dijkstraNanos / 1000.0 / queries);
+		System.out.printf("Contraction hierarchy:  %.1f us/query%n", chNanos / 1000.0 / queries);
+		System.out.println("Mismatching travel times: " + mismatches);
+	}
+
+	private static double[] run(PathFinder finder, int[] from, int[] to, int count) {
+		double[] times = new double[count];
+		for(int i = 0; i < count; i++)
+			times[i] = finder.travelTime(from[i], to[i]);
+		return times;
+	}
+
+	/** Square street grid, 100 map units per block, with random speeds and a few one-way streets. */
+	private static RoadGraph gridCity(int size, long seed) {
+		Random random = new Random(seed);
+		int n = size * size;
+		double[] x = new double[n], y = new double[n];
+		for(int i = 0; i < n; i++) {
+			x[i] = (i % size) * 100;
+			y[i] = (i / size) * 100;
+		}
+		int[] from = new int[n * 4], to = new int[n * 4];
+		double[] minutes = new double[n * 4];
+		int m = 0;
+		for(int i = 0; i < n; i++) {
+			int[] neighbours = {i % size + 1 < size ? i + 1 : -1, i / size + 1 < size ? i + size : -1};
+			for(int j : neighbours) {
+				if(j < 0)
+					continue;
+				// arterials every tenth street are three times faster
+				boolean arterial = (i % size) % 10 == 0 || (i / size) % 10 == 0;
+				double time = (arterial ? 0.1 : 0.3) * (0.8 + 0.4 * random.nextDouble());
+				from[m] = i;
+				to[m] = j;
+				minutes[m++] = time;
+				if(random.nextInt(10) > 0) {
+					from[m] = j;
+					to[m] = i;
+					minutes[m++] = time;
+				}
+			}
+		}
+		return new RoadGraph(0, x, y, Arrays.copyOf(from, m), Arrays.copyOf(to, m),
+				Arrays.copyOf(minutes, m));
+	}
+
+	private static boolean isNumber(String s) {
+		return s.matches("\\d+");
+	}
+}
@@ -0,0 +1,27 @@
+import java.util.List;
+
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.SpatialReference;
+
+/**
+ * What the server needs from a router: the travel time, and the route geometry, through a
+ * sequence of stops visited in the given order.
+ */
+public interface RoutingEngine {
+
+	/** Route through the stops in order. The minutes are infinite when there is no route. */
+	RouteSolution solve(Point[] stops, SpatialReference sRef) throws Exception;
+
+	/**
+	 * Several independent routes, answered in the order given. Implementations may solve them
+	 * together in a single backend request.
+	 */
+	RouteSolution[] solveAll(List<Point[]> routes, SpatialReference sRef) throws Exception;
+
+	/**
+	 * Minutes of two stop routes, without geometry, in the order given; infinite where there
+	 * is no route. Implementations may answer legs that share an origin or a destination with
+	 * one one-to-many search.
+	 */
+	double[] legMinutes(List<Point[]> legs, SpatialReference sRef) throws Exception;
+}
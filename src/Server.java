@@ -5,25 +5,37 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.Map;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import com.esri.runtime.ArcGISRuntime;
 import com.esri.core.internal.tasks.ags.r;
 import com.esri.core.internal.tasks.ags.t;
-import com.esri.core.map.Graphic;
+import com.esri.core.geometry.Point;
 import com.esri.core.symbol.SimpleLineSymbol;
-import com.esri.core.tasks.na.NAFeaturesAsFeature;
-import com.esri.core.tasks.na.Route;
-import com.esri.core.tasks.na.RouteParameters;
-import com.esri.core.tasks.na.RouteResult;
-import com.esri.core.tasks.na.RouteTask;
 import com.esri.map.GraphicsLayer;
 import com.esri.map.JMap;
 import com.esri.map.MapOptions;
@@ -31,19 +43,114 @@ import com.esri.map.MapOptions.MapType;
 
 public class Server extends Thread{
 
-	private ServerSocket socket;
-	private ObjectInputStream oin;
-	private List<ParamData> result;
-	private RouteTask task;
-	private Map<String, List<ParamData>> driverPool;
-	private Map<String, List<ParamData>> riderPool;
+	private NioFrontEnd frontEnd;
+	private RoutingEngine engine;
+	private RidePool driverPool;
+	private RidePool riderPool;
+	private ThreadPoolExecutor workers;
+	private AdmissionControl admission;
+	private ExecutorService solvers;
+	private ScheduledExecutorService scheduler;
+	// apart from the scheduler, whose assignment windows can run long
+	private ScheduledExecutorService expiry;
+	private ServerConfig config;
+	// config.maxSpeed, or the road graph's fastest edge when that is faster
+	private double maxSpeed;
+	private RouteCache<RouteSolution> routeCache;
+	private RouteCache<Double> legCache;
+	private final MatchNotifier notifier = new MatchNotifier();
+	private final CandidateGraph candidates = new CandidateGraph();
+	// itineraries of pooled drivers who carry riders already, by request ID
+	private final Map<Long, Itinerary> itineraries = new ConcurrentHashMap<Long, Itinerary>();
+	private RecentRequests recentRequests;
+	private final AtomicLong prunedSolves = new AtomicLong();
   
 	public Server(int port) throws IOException, Exception {
-		task = RouteTask.createOnlineRouteTask("http://sampleserver6.arcgisonline.com/arcgis/rest/services/NetworkAnalysis/SanDiego/NAServer/Route", null);
-		driverPool = new HashMap<String, List<ParamData>>();
-		riderPool = new HashMap<String, List<ParamData>>();
-		socket = new ServerSocket(port);
-	    socket.setSoTimeout(50000);
+		this(port, ServerConfig.fromSystemProperties());
+	}
+	
+	/**
+	 * Connections are served by config.ioThreads non-blocking I/O threads. Requests are
+	 * matched by config.workers threads; each one mostly waits on the routing engine, so
+	 * this can be well above the number of cores. Requests beyond config.backlog waiting ones,
+	 * over a client's rate, or that waited too long are answered with REPLY_BUSY, see
+	 * {@link AdmissionControl}.
+	 */
+	public Server(int port, ServerConfig config) throws IOException, Exception {
+		this.config = config;
+		routeCache = new RouteCache<RouteSolution>(config.cacheGridSize, config.cacheCapacity, config.cacheTtlMillis);
+		legCache = new RouteCache<Double>(config.cacheGridSize, config.cacheCapacity, config.cacheTtlMillis);
+		RoutingEngine backend = createRoutingEngine(config);
+		maxSpeed = config.maxSpeed;
+		if(backend instanceof LocalRoutingEngine)
+			maxSpeed = Math.max(maxSpeed, ((LocalRoutingEngine)backend).getMaxSpeed());
+		engine = new CachingRoutingEngine(backend, routeCache, legCache);
+		recentRequests = new RecentRequests(config.dedupCapacity, config.dedupTtlMillis);
+		driverPool = new RidePool(config.gridCellSize, maxSpeed, config.slotMinutes, config.departureWindowMinutes);
+		riderPool = new RidePool(config.gridCellSize, maxSpeed, config.slotMinutes, config.departureWindowMinutes);
+		workers = new ThreadPoolExecutor(config.workers, config.workers, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(config.backlog), new WorkerThreadFactory("match-worker-"),
+				new ThreadPoolExecutor.AbortPolicy());
+		admission = new AdmissionControl(workers, config.clientRate, config.clientBurst, config.maxQueueWaitMillis);
+		solvers = Executors.newFixedThreadPool(config.solveParallelism, new WorkerThreadFactory("route-solver-"));
+		scheduler = Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory("scheduler-"));
+		expiry = Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory("expiry-"));
+		frontEnd = new NioFrontEnd(port, config.ioThreads, new NioFrontEnd.Handler() {
+			@Override
+			public void handle(final NioFrontEnd.Connection connection, final Protocol.Frame frame) {
+				int cost = frame.type == Protocol.REGISTER_BATCH ? Math.max(1, Protocol.batchSize(frame.payload)) : 1;
+				admission.submit(clientOf(connection), cost, new AdmissionControl.Request() {
+					@Override
+					public void process() {
+						Protocol.Frame reply = answer(connection, frame);
+						connection.send(reply.type, frame.correlationId, reply.payload);
+					}
+					
+					@Override
+					public void reject(int retryAfterMillis) {
+						connection.send(Protocol.REPLY_BUSY, frame.correlationId, Protocol.encodeBusy(retryAfterMillis));
+					}
+				});
+			}
+			
+			@Override
+			public void closed(NioFrontEnd.Connection connection) {
+				notifier.closed(connection);
+			}
+		}, new BufferPool(config.bufferSize, config.pooledBuffers));
+	}
+	
+	/** Clients are told apart by host, so opening more connections doesn't raise the rate limit. */
+	private static Object clientOf(NioFrontEnd.Connection connection) {
+		SocketAddress remote = connection.getRemoteAddress();
+		if(remote instanceof InetSocketAddress)
+			return ((InetSocketAddress)remote).getAddress();
+		return remote;
+	}
+	
+	/**
+	 * "local" routes over config.roadGraphFile in-process, using the contraction hierarchy in
+	 * config.hierarchyFile when there is one. Anything else uses the online service.
+	 */
+	private static RoutingEngine createRoutingEngine(ServerConfig config) throws Exception {
+		if("local".equals(config.routingEngine)) {
+			RoadGraph graph = RoadGraph.load(new File(config.roadGraphFile));
+			System.out.println("Loaded road graph: " + graph.nodeCount() + " nodes, " + graph.edgeCount() + " edges.");
+			File hierarchyFile = new File(config.hierarchyFile);
+			if(hierarchyFile.isFile()) {
+				try {
+					ContractionHierarchy ch = ContractionHierarchy.load(hierarchyFile);
+					if(ch.matches(graph))
+						return new LocalRoutingEngine(graph, ch);
+					System.out.println(hierarchyFile + " was built from a different graph, ignoring it.");
+				} catch(IOException e) {
+					// e.g. written by an older version; rebuild it with ContractionHierarchy
+					System.out.println("Can't read " + hierarchyFile + ", ignoring it: " + e.getMessage());
+				}
+			}
+			return new LocalRoutingEngine(graph, new BidirectionalDijkstra(graph));
+		}
+		return new ArcGISRoutingEngine(config.routeServiceUrl);
 	}
 	
 	public static void main(String [] args) {
@@ -60,116 +167,641 @@ public class Server extends Thread{
 	
 	@Override
 	public void run() {
-		while(true) {
+		System.out.println("-----------------------------------------------------------------------------------");
+		System.out.println("Waiting for clients...");
+		expiry.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					expireStale();
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+		if(isBatchMode()) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						assignPooled();
+					} catch(Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}, config.assignmentWindowMillis, config.assignmentWindowMillis, TimeUnit.MILLISECONDS);
+		}
+		try {
+			frontEnd.run();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		workers.shutdown();
+		solvers.shutdown();
+		scheduler.shutdown();
+		expiry.shutdown();
+	}
+	
+	/** Reply to one REGISTER, QUERY or REGISTER_BATCH frame received on connection. */
+	private Protocol.Frame answer(NioFrontEnd.Connection connection, Protocol.Frame frame) {
+		try {
+			switch(frame.type) {
+			case Protocol.REGISTER:
+			case Protocol.QUERY:
+				return answer(connection, frame.type, Protocol.request(frame));
+			case Protocol.REGISTER_BATCH:
+				List<Protocol.Frame> replies = answerBatch(connection, Protocol.decodeBatch(frame.payload));
+				return new Protocol.Frame(Protocol.REPLY_BATCH, frame.correlationId, Protocol.encodeReplies(replies));
+			default:
+				throw new IOException("Unexpected frame type " + frame.type);
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			return new Protocol.Frame(Protocol.REPLY_ERROR, frame.correlationId, Protocol.encodeError(e.toString()));
+		}
+	}
+	
+	/** Replies to the requests of a REGISTER_BATCH, in order, see {@link #shareOut}. */
+	private List<Protocol.Frame> answerBatch(final NioFrontEnd.Connection connection, final List<ParamData> batch) throws InterruptedException {
+		final Protocol.Frame[] replies = new Protocol.Frame[batch.size()];
+		shareOut(batch.size(), new Steps() {
+			@Override
+			public void run(int i) {
+				replies[i] = answer(connection, Protocol.REGISTER, batch.get(i));
+			}
+		});
+		return Arrays.asList(replies);
+	}
+	
+	/** A job of independent steps, numbered from 0. */
+	private interface Steps {
+		void run(int i);
+	}
+	
+	/**
+	 * Runs steps 0 to count - 1 and returns once all of them have run. They are shared out
+	 * over the workers: helper tasks each run one step and queue again behind the requests
+	 * waiting for a worker, while this thread runs steps until none are left. So a big job
+	 * takes turns with everyone else instead of keeping one thread for all of its routing,
+	 * and still finishes when no helper gets to run.
+	 */
+	private void shareOut(final int count, final Steps steps) throws InterruptedException {
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(count);
+		// each helper runs one step, then queues again while any are left
+		class Helper implements Runnable {
+			boolean runNext() {
+				int i = next.getAndIncrement();
+				if(i >= count)
+					return false;
+				try {
+					steps.run(i);
+				} finally {
+					done.countDown();
+				}
+				return i + 1 < count;
+			}
+			
+			@Override
+			public void run() {
+				try {
+					if(runNext())
+						workers.execute(this);
+				} catch(RejectedExecutionException e) {
+					// the queue is full; the job's own thread carries on
+				}
+			}
+		}
+		Helper helper = new Helper();
+		for(int i = Math.min(count - 1, config.workers / 2); i > 0; i--) {
 			try {
-				System.out.println("-----------------------------------------------------------------------------------");
-				System.out.println("Waiting for client...");
-				Socket client = socket.accept();
-				System.out.println("Client " + client.getRemoteSocketAddress() + " connected!");
-				oin = new ObjectInputStream(client.getInputStream());
-				ParamData data = (ParamData)oin.readObject();
-				int type = data.getClientType();
-				if(data.getClientType() == 0) //Driver
-					System.out.println("Driver data received!");
-				else //Rider
-					System.out.println("Rider data received!");
-				
-				System.out.println("****************************************************************************");
-				result = searchMatch(type, data);
-				if(result.size() == 0) {
-					addToPool(type, data);
-					System.out.println("\tNo match yet! But you'll be notified when there's a match.");
-				} else if(data.getClientType() == 0) 
-					System.out.println("\tThank you! A rider can ride your car!");
-				else 
-					System.out.println("\tGreat! A driver is able to share ride with you!");
-				System.out.println("****************************************************************************");
-				client.close();
-			} catch(SocketTimeoutException s) {
-				System.out.println("Server timed out!");
+				workers.execute(helper);
+			} catch(RejectedExecutionException e) {
 				break;
-			} catch(IOException e) {
-				e.printStackTrace();
-				break;
-			} catch(ClassNotFoundException ce) {
-				ce.printStackTrace();
-			} catch(Exception e) {
-				e.printStackTrace();
-			}
-		}
-	}
-	
-	private void addToPool(int type, ParamData data) {
-		Map<String, List<ParamData>> pool = type == 0 ? driverPool : riderPool;
-		String time = data.getDate();
-		if(!pool.containsKey(time)) {
-			List<ParamData> list = new ArrayList<ParamData>();
-			list.add(data);
-			pool.put(time, list);
-		} else
-			pool.get(time).add(data);
-	}
-	
-	public List<ParamData> searchMatch(int type, ParamData data) throws Exception {
-		RouteResult result;
-		RouteParameters parameters;
-		ParamData driver;
-		if(type == 0) {
-			parameters = buildSingleParams(data);
-			result = task.solve(parameters);
-			data.setDrivingTime(getDrivingTime(result));
-		}
-		List<ParamData> otherPool = type == 0 ? riderPool.get(data.getDate()) : driverPool.get(data.getDate());
-		List<ParamData> candidates = new ArrayList<ParamData>();
-		if(otherPool == null)
-			return candidates;
+			}
+		}
+		while(helper.runNext())
+			;
+		done.await();
+	}
+	
+	/**
+	 * Reply to one request. A request seen before is answered from its original outcome, see
+	 * {@link RecentRequests}.
+	 */
+	private Protocol.Frame answer(NioFrontEnd.Connection connection, byte type, ParamData data) {
+		RecentRequests.Outcome outcome = new RecentRequests.Outcome(type, clientOf(connection));
+		RecentRequests.Outcome earlier = recentRequests.begin(data.getRequestId(), outcome);
+		if(earlier != null)
+			return replay(connection, type, data, earlier);
+		Protocol.Frame reply;
+		try {
+			Match match = process(data, type == Protocol.REGISTER ? connection : null);
+			if(match != null)
+				reply = new Protocol.Frame(Protocol.REPLY_MATCHED, Protocol.NO_CORRELATION, Protocol.encodeMatch(match.partner, match.route));
+			else
+				reply = new Protocol.Frame(type == Protocol.REGISTER ? Protocol.REPLY_POOLED : Protocol.REPLY_NO_MATCH, Protocol.NO_CORRELATION, Protocol.EMPTY);
+		} catch(Exception e) {
+			e.printStackTrace();
+			reply = new Protocol.Frame(Protocol.REPLY_ERROR, Protocol.NO_CORRELATION, Protocol.encodeError(e.toString()));
+		}
+		recentRequests.complete(data.getRequestId(), outcome, reply);
+		return reply;
+	}
+	
+	/**
+	 * The original reply to a request sent again. A copy of a request that is still pooled,
+	 * including a driver waiting for more riders, moves its match notifications to the
+	 * connection it came on. Only the client that sent the request gets either; request IDs
+	 * are not secret enough to act for someone else with.
+	 */
+	private Protocol.Frame replay(NioFrontEnd.Connection connection, byte type, ParamData data, RecentRequests.Outcome earlier) {
+		if(!earlier.isFrom(clientOf(connection)))
+			return new Protocol.Frame(Protocol.REPLY_ERROR, Protocol.NO_CORRELATION, Protocol.encodeError("Request " + data.getRequestId() + " belongs to another client"));
+		System.out.println("Request " + data.getRequestId() + " was sent again, answering with its earlier outcome.");
+		Protocol.Frame reply;
+		try {
+			reply = earlier.await(2 * config.matchBudgetMillis);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			reply = null;
+		}
+		if(reply == null)
+			return new Protocol.Frame(Protocol.REPLY_ERROR, Protocol.NO_CORRELATION, Protocol.encodeError("Request " + data.getRequestId() + " is still being matched"));
+		if(type == Protocol.REGISTER && (data.getClientType() == 0 ? driverPool : riderPool).contains(data.getRequestId()))
+			notifier.subscribe(data, connection, clientOf(connection));
+		return reply;
+	}
+	
+	/**
+	 * Matches one request and claims the counterpart, whose client is told about the match
+	 * if it is still connected. When there is none and subscriber is set, the request is
+	 * pooled to wait for a later arrival and subscriber will be notified of it. In batch
+	 * mode a request with a subscriber is always pooled, and matched by {@link #assignPooled}.
+	 * A driver who registered goes back in the pool after taking a rider, see {@link #repool}.
+	 * A request that is pooled already, because the client sent it again after losing the
+	 * reply, is left as it is and only subscribed again. A REGISTER whose stops have no route
+	 * between them fails.
+	 * 
+	 * @return the claimed counterpart and the shared route, or null
+	 */
+	private Match process(ParamData data, NioFrontEnd.Connection subscriber) throws Exception {
+		int type = data.getClientType();
+		if(subscriber != null && (type == 0 ? driverPool : riderPool).contains(data.getRequestId())) {
+			subscribe(data, subscriber);
+			System.out.println("Request " + data.getRequestId() + " is already pooled.");
+			return null;
+		}
+		if(data.getClientType() == 0) //Driver
+			System.out.println("Driver data received!");
+		else //Rider
+			System.out.println("Rider data received!");
+		
+		List<CandidateGraph.Edge> edges = searchMatch(type, data);
+		// a trip that can't be driven is never pooled; its ellipse would have no bounds
+		if(subscriber != null && Double.isInfinite(data.getDrivingTime()))
+			throw new IllegalArgumentException("No route between the stops of request " + data.getRequestId());
+		Collections.sort(edges, CandidateGraph.BY_DETOUR);
+		CandidateGraph.Edge claimed = isBatchMode() && subscriber != null ? null : claimCheapest(type == 0 ? riderPool : driverPool, data, edges);
+		Match match = null;
+		StringBuilder out = new StringBuilder();
+		out.append("****************************************************************************\n");
+		if(claimed == null) {
+			if(subscriber != null) {
+				// subscribe first, a later arrival may claim the request as soon as it is pooled
+				subscribe(data, subscriber);
+				addToPool(type, data, edges);
+				out.append("\tNo match yet! But you'll be notified when there's a match.\n");
+			} else
+				out.append("\tNo match yet!\n");
+		} else {
+			if(data.getClientType() == 0) 
+				out.append("\tThank you! A rider can ride your car!\n");
+			else 
+				out.append("\tGreat! A driver is able to share ride with you!\n");
+			// an arriving driver who only queried is not pooled
+			boolean stays = type == 1 || subscriber != null;
+			boolean more = stays && hasRoom(claimed.plan);
+			if(more)
+				out.append("\tThe driver carries " + claimed.plan.getRiders().size() + " rider(s) and has room for more.\n");
+			ParamData partner = claimed.other(data);
+			match = new Match(partner, encodeRoute(routeOf(claimed)));
+			if(!announce(partner, data, match.route, type == 1 && more))
+				out.append("\tThe " + (type == 0 ? "rider" : "driver") + " is no longer connected.\n");
+			if(stays)
+				repool(claimed.driver, claimed.plan, type == 0 ? subscriber : null);
+		}
+		out.append("\t" + routeCache + ", legs " + legCache + ", solves avoided by distance bound=" + prunedSolves.get() + "\n");
+		out.append("\t" + admission + "\n");
+		out.append("\t" + recentRequests + ", " + candidates + "\n");
+		out.append("****************************************************************************");
+		System.out.println(out);
+		return match;
+	}
+	
+	/**
+	 * Tells a pooled request's client that it was matched, if it is still connected, and
+	 * keeps the match as its outcome so the client gets it if it sends the request again.
+	 * Returns false when the client is not connected. more is set for a driver who stays
+	 * pooled to take more riders.
+	 */
+	private boolean announce(ParamData pooled, ParamData partner, byte[] route, boolean more) {
+		recentRequests.matched(pooled.getRequestId(), new Protocol.Frame(Protocol.REPLY_MATCHED, Protocol.NO_CORRELATION, Protocol.encodeMatch(partner, route)));
+		return notifier.notifyMatched(pooled, partner, route, more);
+	}
+	
+	/** Subscribes the client's connection to the request's notifications, unless it is someone else's. */
+	private void subscribe(ParamData data, NioFrontEnd.Connection connection) {
+		if(!notifier.subscribe(data, connection, clientOf(connection)))
+			throw new IllegalArgumentException("Request " + data.getRequestId() + " belongs to another client");
+	}
+	
+	private boolean isBatchMode() {
+		return "batch".equals(config.matchMode);
+	}
+	
+	/**
+	 * Batch mode: assigns pooled drivers and riders all at once over the candidate graph, so
+	 * that as many as possible are matched for the least total detour, and notifies both
+	 * ends of every pair. The pairs are disjoint, so their routing and re-pooling is
+	 * {@link #shareOut shared out} over the workers. A pair whose other end was claimed
+	 * meanwhile, by a QUERY, or whose driver took another rider since the edge was found and
+	 * has no time left for this one, is left for the next window.
+	 */
+	private void assignPooled() throws InterruptedException {
+		List<CandidateGraph.Edge> edges = candidates.edges();
+		if(edges.isEmpty())
+			return;
+		long start = System.nanoTime();
+		final List<CandidateGraph.Edge> assignment = MinCostMatching.solve(edges);
+		long solved = System.nanoTime();
+		final boolean[] settled = new boolean[assignment.size()];
+		shareOut(assignment.size(), new Steps() {
+			@Override
+			public void run(int i) {
+				settled[i] = settle(assignment.get(i));
+			}
+		});
+		int matched = 0;
+		double detour = 0;
+		for(int i = 0; i < settled.length; i++) {
+			if(settled[i]) {
+				matched++;
+				detour += assignment.get(i).detour;
+			}
+		}
+		System.out.printf("Assigned %d pair(s) from %d candidate edge(s), total detour %.1f min, solved in %.1f ms, %d ms overall.%n",
+				matched, edges.size(), detour, (solved - start) / 1e6, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+	
+	/**
+	 * Claims both ends of an assigned pair, seats the rider and tells both; the driver goes
+	 * back in the pool while they have room. Returns false, leaving the pair pooled, when
+	 * either end is gone or the rider no longer fits.
+	 */
+	private boolean settle(CandidateGraph.Edge edge) {
+		if(!driverPool.claim(edge.driver))
+			return false;
+		if(!riderPool.claim(edge.rider)) {
+			driverPool.add(edge.driver);
+			return false;
+		}
+		CandidateGraph.Edge boarded;
+		try {
+			boarded = board(edge);
+		} catch(Exception e) {
+			e.printStackTrace();
+			boarded = null;
+		}
+		if(boarded == null) {
+			driverPool.add(edge.driver);
+			riderPool.add(edge.rider);
+			return false;
+		}
+		candidates.remove(edge.driver);
+		candidates.remove(edge.rider);
+		byte[] route = encodeRoute(routeOf(boarded));
+		announce(edge.driver, edge.rider, route, hasRoom(boarded.plan));
+		announce(edge.rider, edge.driver, route, false);
+		repool(edge.driver, boarded.plan, null);
+		return true;
+	}
+	
+	/**
+	 * Drops the pooled requests whose departure window is over, with what is kept for them:
+	 * their candidate edges, a driver's itinerary and the client's subscription. Runs once a
+	 * minute; the pools' timing wheels tick in minutes.
+	 */
+	private void expireStale() {
+		long now = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+		int expired = 0;
+		for(RidePool pool : new RidePool[] {driverPool, riderPool}) {
+			for(ParamData data : pool.expire(now)) {
+				candidates.remove(data);
+				itineraries.remove(Long.valueOf(data.getRequestId()));
+				notifier.unsubscribe(data);
+				expired++;
+			}
+		}
+		if(expired > 0)
+			System.out.println("Expired " + expired + " pooled request(s); " + driverPool.size() + " driver(s) and "
+					+ riderPool.size() + " rider(s) still pooled.");
+	}
+	
+	/**
+	 * Seats the edge's rider with its driver, now that both are claimed. Returns the edge with
+	 * the driver's itinerary after boarding, or null when the rider no longer fits because
+	 * another rider boarded since the edge was found.
+	 */
+	private CandidateGraph.Edge board(CandidateGraph.Edge edge) throws Exception {
+		Itinerary current = itineraries.get(Long.valueOf(edge.driver.getRequestId()));
+		if(edge.plan.isExtensionOf(current))
+			return edge;
+		Itinerary base = current != null ? current : Itinerary.start(edge.driver, config.seats);
+		Itinerary plan = base.insert(edge.rider, engine.legMinutes(base.legsFor(edge.rider), edge.rider.getsPf()));
+		if(plan == null)
+			return null;
+		return new CandidateGraph.Edge(edge.driver, edge.rider, plan.getMinutes() - base.getMinutes(), plan);
+	}
+	
+	/** Whether a driver with this itinerary can take another rider. */
+	private boolean hasRoom(Itinerary plan) {
+		return config.seats > 1 && plan.canTakeMore();
+	}
+	
+	/**
+	 * Puts a driver who just took a rider back in the pool while they {@link #hasRoom have
+	 * room}; subscriber, if set, hears about the next riders. The driver's old candidate
+	 * edges were priced for the itinerary without this rider, so the pooled riders near them
+	 * are priced again. In immediate mode the cheapest of those who fit takes the next seat
+	 * straight away, and both ends are told, until no one fits or the driver is full; in batch
+	 * mode the edges wait for the next window.
+	 */
+	private void repool(ParamData driver, Itinerary plan, NioFrontEnd.Connection subscriber) {
+		Long id = Long.valueOf(driver.getRequestId());
+		if(subscriber != null && hasRoom(plan))
+			notifier.subscribe(driver, subscriber, clientOf(subscriber));
+		while(hasRoom(plan)) {
+			itineraries.put(id, plan);
+			List<CandidateGraph.Edge> edges = reprice(driver);
+			CandidateGraph.Edge next = null;
+			if(!isBatchMode()) {
+				try {
+					next = claimCheapest(riderPool, driver, edges);
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+			if(next == null) {
+				addToPool(0, driver, edges);
+				return;
+			}
+			plan = next.plan;
+			System.out.println("Pooled rider " + next.rider.getRequestId() + " takes a seat with driver " + driver.getRequestId()
+					+ ", who carries " + plan.getRiders().size() + " rider(s).");
+			byte[] route = encodeRoute(routeOf(next));
+			announce(next.rider, driver, route, false);
+			announce(driver, next.rider, route, hasRoom(plan));
+		}
+		itineraries.remove(id);
+	}
+	
+	/**
+	 * The driver's edges to the pooled riders near them, cheapest first, priced for their
+	 * current itinerary. Empty when they can't be priced; the driver then waits for the next
+	 * rider to arrive.
+	 */
+	private List<CandidateGraph.Edge> reprice(ParamData driver) {
+		try {
+			List<CandidateGraph.Edge> edges = searchMatch(0, driver);
+			Collections.sort(edges, CandidateGraph.BY_DETOUR);
+			return edges;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+		return new ArrayList<CandidateGraph.Edge>();
+	}
+	
+	/**
+	 * The driver's route with the edge's rider aboard. Candidates are priced from leg times
+	 * alone, so this is solved once per match. Null if it can't be solved, the route is only
+	 * shown to the clients.
+	 */
+	private RouteSolution routeOf(CandidateGraph.Edge edge) {
+		if(!config.sendRoutes)
+			return null;
+		try {
+			return engine.solve(edge.plan.getStops(), edge.driver.getsPf());
+		} catch(Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/** The shared route in {@link PolylineCodec} form, or null when there is none to send. */
+	private byte[] encodeRoute(RouteSolution solution) {
+		if(!config.sendRoutes || solution == null || solution.getGeometry() == null)
+			return null;
+		return PolylineCodec.encode(solution.getGeometry(), config.routeDecimals);
+	}
+	
+	private static class Match {
+		final ParamData partner;
+		final byte[] route;
+		
+		Match(ParamData partner, byte[] route) {
+			this.partner = partner;
+			this.route = route;
+		}
+	}
+	
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String prefix;
+		
+		WorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			return t;
+		}
+	}
+	
+	/**
+	 * Claims the cheapest of the edges (sorted by detour) whose other end nobody else has
+	 * claimed yet, and seats the rider. Another request running at the same time may have
+	 * taken some of them since they were found, or given the driver another rider.
+	 * 
+	 * @return the claimed edge, with the driver's itinerary after boarding, or null
+	 */
+	private CandidateGraph.Edge claimCheapest(RidePool pool, ParamData data, List<CandidateGraph.Edge> edges) throws Exception {
+		for(CandidateGraph.Edge edge : edges) {
+			ParamData candidate = edge.other(data);
+			if(!pool.claim(candidate))
+				continue;
+			List<CandidateGraph.Edge> kept = candidates.candidates(candidate);
+			candidates.remove(candidate);
+			CandidateGraph.Edge boarded = null;
+			try {
+				boarded = board(edge);
+			} finally {
+				// the rider didn't fit after all; the candidate goes back with its other edges
+				if(boarded == null)
+					addToPool(candidate.getClientType(), candidate, kept);
+			}
+			if(boarded != null)
+				return boarded;
+		}
+		return null;
+	}
+	
+	/**
+	 * Pools the request along with its edges to pooled requests. It enters the candidate
+	 * graph first, so a claim right after it is pooled also removes it from there.
+	 */
+	private void addToPool(int type, ParamData data, List<CandidateGraph.Edge> edges) {
+		RidePool pool = type == 0 ? driverPool : riderPool;
+		if(candidates.add(data, edges) && !pool.add(data))
+			candidates.remove(data);
+	}
+	
+	/**
+	 * Prices data against the entries of the opposite pool that depart within
+	 * config.departureWindowMinutes and lie inside the driver's detour ellipse; entries
+	 * outside it cannot be matched. Candidates whose straight-line detour already exceeds the
+	 * driver's tolerance are dropped without solving. The rest are priced config.batchSize at
+	 * a time, one leg request per batch (see {@link #solveBatch}), on the shared solver pool;
+	 * batches are collected as they finish and whatever has not finished when
+	 * config.matchBudgetMillis runs out is cancelled and treated as no match.
+	 * 
+	 * @return an edge to each candidate that can share a ride with data
+	 */
+	public List<CandidateGraph.Edge> searchMatch(int type, final ParamData data) throws Exception {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.matchBudgetMillis);
+		// the driver's own trip, or the rider's direct ride, shared by every candidate
+		data.setDrivingTime(engine.solve(stops(data), data.getsPf()).getMinutes());
+		List<CandidateGraph.Edge> edges = new ArrayList<CandidateGraph.Edge>();
+		if(Double.isInfinite(data.getDrivingTime()))
+			return edges;
+		RidePool pool = type == 0 ? riderPool : driverPool;
+		List<ParamData> otherPool = pool.nearby(data, config.departureWindowMinutes);
+		if(otherPool.isEmpty())
+			return edges;
+		System.out.println("\t" + otherPool.size() + " of " + pool.size(data.getDeparture(), config.departureWindowMinutes) + " pooled candidate(s) within reach.");
+		
+		List<ParamData> reachable = new ArrayList<ParamData>();
+		int pruned = 0;
 		for(ParamData p : otherPool) {
-			if(type == 0) {
-				parameters = buildMergedParams(data, p);
-				driver = data;
-			} else {
-				parameters = buildMergedParams(p, data);
-				driver = p;
-			}
-			result = task.solve(parameters);
-			if(isSatisfiable(getDrivingTime(result), driver)) {
-				candidates.add(p);
-			}
-		}
-		return candidates;
-	}
-	
-	private RouteParameters buildSingleParams(ParamData data) throws Exception {
-		RouteParameters parameters = task.retrieveDefaultRouteTaskParameters();
-	    parameters.setOutSpatialReference(data.getsPf());
-	    NAFeaturesAsFeature stops = new NAFeaturesAsFeature();
-	    for(Graphic stop : data.getStops()) {
-	    	stops.addFeature(stop);
-	    }
-	    stops.setSpatialReference(data.getsPf());
-	    parameters.setStops(stops);
-	    parameters.setFindBestSequence(false);
-		return parameters;
-	}
-	
-	private RouteParameters buildMergedParams(ParamData driver, ParamData rider) throws Exception {
-		RouteParameters parameters = task.retrieveDefaultRouteTaskParameters();
-	    parameters.setOutSpatialReference(driver.getsPf());
-	    NAFeaturesAsFeature stops = new NAFeaturesAsFeature();
-	    stops.addFeature(driver.getStops()[0]);
-	    for(Graphic stop : rider.getStops()) {
-	    	stops.addFeature(stop);
-	    }
-	    stops.addFeature(driver.getStops()[1]);
-	    stops.setSpatialReference(driver.getsPf());
-	    parameters.setStops(stops);
-	    parameters.setFindBestSequence(false);
-		return parameters;
-	}
-	
-	private double getDrivingTime(RouteResult result){
-		String str = result.toString().split("Minutes=")[1];
-		return Double.valueOf(str.split("]")[0]);
+			ParamData driver = type == 0 ? data : p;
+			ParamData rider = type == 0 ? p : data;
+			if(driver.getDrivingTime() >= 0 && !isSatisfiable(driver.getDrivingTime() + lowerBoundDetour(driver, rider), driver))
+				pruned++;
+			else
+				reachable.add(p);
+		}
+		if(pruned > 0) {
+			prunedSolves.addAndGet(pruned);
+			System.out.println("\t" + pruned + " candidate(s) ruled out without solving.");
+		}
+		
+		CompletionService<List<CandidateGraph.Edge>> completion = new ExecutorCompletionService<List<CandidateGraph.Edge>>(solvers);
+		List<Future<List<CandidateGraph.Edge>>> pending = new ArrayList<Future<List<CandidateGraph.Edge>>>();
+		int batchSize = Math.max(1, config.batchSize);
+		for(int from = 0; from < reachable.size(); from += batchSize) {
+			final List<ParamData> batch = reachable.subList(from, Math.min(from + batchSize, reachable.size()));
+			final int arrivalType = type;
+			pending.add(completion.submit(new Callable<List<CandidateGraph.Edge>>() {
+				@Override
+				public List<CandidateGraph.Edge> call() throws Exception {
+					return solveBatch(arrivalType, data, batch);
+				}
+			}));
+		}
+		try {
+			for(int i = 0; i < pending.size(); i++) {
+				long remaining = deadline - System.nanoTime();
+				Future<List<CandidateGraph.Edge>> done = completion.poll(remaining, TimeUnit.NANOSECONDS);
+				if(done == null) {
+					System.out.println("\tMatch budget used up, " + (pending.size() - i) + " batch(es) skipped.");
+					break;
+				}
+				try {
+					edges.addAll(done.get());
+				} catch(ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
+			}
+		} finally {
+			for(Future<List<CandidateGraph.Edge>> f : pending)
+				f.cancel(true);
+		}
+		return edges;
+	}
+	
+	/**
+	 * Edges to the entries of batch that can share a ride with data. The rider is inserted
+	 * into each driver's itinerary, an empty one for a driver without riders, which is priced
+	 * from leg times: for a single rider the detour is d(s,p) + d(p,q) + d(q,e) - d(s,e), with
+	 * d(p,q) and d(s,e) known already. Every leg of the batch starts or ends at one of data's
+	 * stops, and all of them go to the engine in one call.
+	 */
+	private List<CandidateGraph.Edge> solveBatch(int type, ParamData data, List<ParamData> batch) throws Exception {
+		List<Point[]> legs = new ArrayList<Point[]>();
+		Itinerary[] bases = new Itinerary[batch.size()];
+		// the legs of batch entry i are first[i] up to first[i + 1]
+		int[] first = new int[batch.size() + 1];
+		for(int i = 0; i < batch.size(); i++) {
+			ParamData driver = type == 0 ? data : batch.get(i);
+			Itinerary carrying = itineraries.get(Long.valueOf(driver.getRequestId()));
+			// not a QUERY that reuses a pooled driver's ID
+			bases[i] = carrying != null && carrying.getDriver() == driver ? carrying : Itinerary.start(driver, config.seats);
+			first[i] = legs.size();
+			legs.addAll(bases[i].legsFor(type == 0 ? batch.get(i) : data));
+		}
+		first[batch.size()] = legs.size();
+		double[] minutes = engine.legMinutes(legs, data.getsPf());
+		List<CandidateGraph.Edge> edges = new ArrayList<CandidateGraph.Edge>();
+		for(int i = 0; i < batch.size(); i++) {
+			ParamData rider = type == 0 ? batch.get(i) : data;
+			Itinerary plan = bases[i].insert(rider, Arrays.copyOfRange(minutes, first[i], first[i + 1]));
+			if(plan != null)
+				edges.add(new CandidateGraph.Edge(bases[i].getDriver(), rider, plan.getMinutes() - bases[i].getMinutes(), plan));
+		}
+		return edges;
+	}
+	
+	/**
+	 * Lower bound, in minutes, on the extra time the driver needs to serve the rider: the
+	 * straight-line length of the merged route can't be driven faster than maxSpeed.
+	 */
+	private double lowerBoundDetour(ParamData driver, ParamData rider) {
+		Point[] stops = mergedStops(driver, rider);
+		double length = 0;
+		for(int i = 1; i < stops.length; i++)
+			length += Geo.distance(stops[i - 1], stops[i]);
+		return length / maxSpeed - driver.getDrivingTime();
+	}
+	
+	private Point[] stops(ParamData data) {
+		Point[] stops = new Point[data.getStopCount()];
+		for(int i = 0; i < stops.length; i++)
+			stops[i] = data.getStop(i);
+		return stops;
+	}
+	
+	/** Driver start, the rider's stops, then driver end. */
+	private Point[] mergedStops(ParamData driver, ParamData rider) {
+		Point[] stops = new Point[rider.getStopCount() + 2];
+		stops[0] = driver.getStop(0);
+		for(int i = 0; i < rider.getStopCount(); i++)
+			stops[i + 1] = rider.getStop(i);
+		stops[stops.length - 1] = driver.getStop(driver.getStopCount() - 1);
+		return stops;
 	}
 	
 	private boolean isSatisfiable(double totalDrivingTime, ParamData driver) {
@@ -0,0 +1,109 @@
+/**
+ * Tuning knobs for {@link Server}. Every value can be overridden with a system property,
+ * e.g. <code>java -Dshareride.workers=64 Server</code>.
+ */
+public class ServerConfig {
+	/** "arcgis" for the online route service, "local" for the in-process road graph. */
+	public String routingEngine = "arcgis";
+	/** Network analysis route service used by the "arcgis" engine. */
+	public String routeServiceUrl = "http://sampleserver6.arcgisonline.com/arcgis/rest/services/NetworkAnalysis/SanDiego/NAServer/Route";
+	/** Road graph file loaded by the "local" engine, see {@link RoadGraph}. */
+	public String roadGraphFile = "roads.graph";
+	/** Contraction hierarchy built from roadGraphFile, see {@link ContractionHierarchy}. Optional. */
+	public String hierarchyFile = "roads.ch";
+	/** Threads multiplexing the client connections. */
+	public int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	/** Size of the pooled direct read buffers, in bytes. */
+	public int bufferSize = 16 * 1024;
+	/** Read buffers kept for reuse. */
+	public int pooledBuffers = 1024;
+	/** Requests matched at the same time. */
+	public int workers = Runtime.getRuntime().availableProcessors() * 4;
+	/** Received requests allowed to wait for a worker; more are answered with REPLY_BUSY. */
+	public int backlog = 256;
+	/** Longest a request may wait for a worker before it is answered with REPLY_BUSY instead. */
+	public long maxQueueWaitMillis = 2000;
+	/** Requests per second one client address may send, sustained. */
+	public double clientRate = 20;
+	/** Requests one client address may send in a burst after being idle. */
+	public int clientBurst = 50;
+	/** Route solves running at the same time, across all requests. */
+	public int solveParallelism = 32;
+	/** How long one request may spend solving candidate routes, in milliseconds. */
+	public long matchBudgetMillis = 5000;
+	/** Width of one departure bucket in the pools, in minutes. Matches the client's 10 minute steps. */
+	public int slotMinutes = 10;
+	/** Pooled requests departing up to this many minutes earlier or later are considered. */
+	public int departureWindowMinutes = 10;
+	/** Candidate routes solved together in one routing request. */
+	public int batchSize = 20;
+	/** Cell size, in map units, of the spatial index over each pool bucket. */
+	public double gridCellSize = 2000;
+	/**
+	 * Upper bound on network speed in map units per minute, used to rule out riders outside a
+	 * driver's reach. About 65 mph in Web Mercator units at San Diego's latitude, plus margin.
+	 * With the local engine, the road graph's fastest edge is used when it is faster.
+	 */
+	public double maxSpeed = 2500;
+	/**
+	 * "immediate" matches each arrival with the cheapest pooled counterpart as it comes in.
+	 * "batch" pools every REGISTER and assigns all pooled requests together once per
+	 * assignmentWindowMillis, see {@link MinCostMatching}; QUERY is still answered immediately.
+	 */
+	public String matchMode = "immediate";
+	/** How often pooled requests are assigned in "batch" mode, in milliseconds. */
+	public long assignmentWindowMillis = 10000;
+	/**
+	 * Riders one driver can carry at a time. A driver who registered stays pooled after a
+	 * match while their tolerance allows; with 1 they take one rider and leave the pool.
+	 */
+	public int seats = 4;
+	/** Whether match replies and notifications carry the shared route's geometry. */
+	public boolean sendRoutes = true;
+	/** Precision of sent routes, see {@link PolylineCodec}; 0 rounds to whole map units. */
+	public int routeDecimals = PolylineCodec.STANDARD;
+	/** Recent requests whose outcome is kept to answer copies sent again. */
+	public int dedupCapacity = 200000;
+	/** How long the outcome of a request is kept, in milliseconds. */
+	public long dedupTtlMillis = 30 * 60 * 1000L;
+	/** Grid, in map units, that stops are snapped to before looking up a cached route. */
+	public double cacheGridSize = 25;
+	/** Solved routes kept in the route cache; as many leg times are kept besides. */
+	public int cacheCapacity = 100000;
+	/** How long a cached route stays valid, in milliseconds. */
+	public long cacheTtlMillis = 30 * 60 * 1000L;
+
+	public static ServerConfig fromSystemProperties() {
+		ServerConfig config = new ServerConfig();
+		config.routingEngine = System.getProperty("shareride.routingEngine", config.routingEngine);
+		config.routeServiceUrl = System.getProperty("shareride.routeServiceUrl", config.routeServiceUrl);
+		config.roadGraphFile = System.getProperty("shareride.roadGraphFile", config.roadGraphFile);
+		config.hierarchyFile = System.getProperty("shareride.hierarchyFile", config.hierarchyFile);
+		config.ioThreads = Integer.getInteger("shareride.ioThreads", config.ioThreads);
+		config.bufferSize = Integer.getInteger("shareride.bufferSize", config.bufferSize);
+		config.pooledBuffers = Integer.getInteger("shareride.pooledBuffers", config.pooledBuffers);
+		config.workers = Integer.getInteger("shareride.workers", config.workers);
+		config.backlog = Integer.getInteger("shareride.backlog", config.backlog);
+		config.maxQueueWaitMillis = Long.getLong("shareride.maxQueueWaitMillis", config.maxQueueWaitMillis);
+		config.clientRate = Double.parseDouble(System.getProperty("shareride.clientRate", String.valueOf(config.clientRate)));
+		config.clientBurst = Integer.getInteger("shareride.clientBurst", config.clientBurst);
+		config.solveParallelism = Integer.getInteger("shareride.solveParallelism", config.solveParallelism);
+		config.matchBudgetMillis = Long.getLong("shareride.matchBudgetMillis", config.matchBudgetMillis);
+		config.slotMinutes = Integer.getInteger("shareride.slotMinutes", config.slotMinutes);
+		config.departureWindowMinutes = Integer.getInteger("shareride.departureWindowMinutes", config.departureWindowMinutes);
+		config.batchSize = Integer.getInteger("shareride.batchSize", config.batchSize);
+		config.gridCellSize = Double.parseDouble(System.getProperty("shareride.gridCellSize", String.valueOf(config.gridCellSize)));
+		config.maxSpeed = Double.parseDouble(System.getProperty("shareride.maxSpeed", String.valueOf(config.maxSpeed)));
+		config.matchMode = System.getProperty("shareride.matchMode", config.matchMode);
+		config.assignmentWindowMillis = Long.getLong("shareride.assignmentWindowMillis", config.assignmentWindowMillis);
+		config.seats = Integer.getInteger("shareride.seats", config.seats);
+		config.sendRoutes = Boolean.parseBoolean(System.getProperty("shareride.sendRoutes", String.valueOf(config.sendRoutes)));
+		config.routeDecimals = Integer.getInteger("shareride.routeDecimals", config.routeDecimals);
+		config.dedupCapacity = Integer.getInteger("shareride.dedupCapacity", config.dedupCapacity);
+		config.dedupTtlMillis = Long.getLong("shareride.dedupTtlMillis", config.dedupTtlMillis);
+		config.cacheGridSize = Double.parseDouble(System.getProperty("shareride.cacheGridSize", String.valueOf(config.cacheGridSize)));
+		config.cacheCapacity = Integer.getInteger("shareride.cacheCapacity", config.cacheCapacity);
+		config.cacheTtlMillis = Long.getLong("shareride.cacheTtlMillis", config.cacheTtlMillis);
+		return config;
+	}
+}
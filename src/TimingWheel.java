@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: timers that fire once a clock of whole ticks reaches their
+ * deadline. Each level is a ring of 64 slots, a slot of level l covering 64^l ticks. A timer
+ * goes in the coarsest level it fits, and whenever the level below wraps around, the timers of
+ * the next slot up are spread over it. Scheduling and cancelling are O(1), and advancing costs
+ * one slot per tick plus the timers that fire or move down. Four levels cover 64^4 ticks;
+ * a deadline further out is parked in the last slot and placed again when it comes down.
+ */
+public class TimingWheel<T> {
+
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int LEVELS = 4;
+	private static final long RANGE = 1L << (SLOT_BITS * LEVELS);
+
+	/** A scheduled item, to {@link TimingWheel#cancel cancel} it with. */
+	public static final class Timer<T> {
+		private final T item;
+		private final long deadline;
+		private Timer<T> previous, next;
+
+		private Timer(T item, long deadline) {
+			this.item = item;
+			this.deadline = deadline;
+		}
+
+		public T getItem() {
+			return item;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+	}
+
+	// slots[level][i] is the sentinel of a circular list
+	private final Timer<T>[][] slots;
+	// the next tick to process
+	private long tick;
+	private int size;
+
+	/** A wheel whose clock starts at the given tick. */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimingWheel(long now) {
+		slots = new Timer[LEVELS][SLOTS];
+		for(Timer<T>[] level : slots) {
+			for(int i = 0; i < SLOTS; i++) {
+				Timer<T> sentinel = new Timer<T>(null, 0);
+				sentinel.previous = sentinel;
+				sentinel.next = sentinel;
+				level[i] = sentinel;
+			}
+		}
+		tick = now + 1;
+	}
+
+	/** Fires the item at the deadline, or at the next tick when that has passed already. */
+	public synchronized Timer<T> schedule(T item, long deadline) {
+		Timer<T> timer = new Timer<T>(item, deadline);
+		place(timer);
+		size++;
+		return timer;
+	}
+
+	/** Returns false when the timer has fired or was cancelled already. */
+	public synchronized boolean cancel(Timer<T> timer) {
+		if(timer.next == null)
+			return false;
+		unlink(timer);
+		size--;
+		return true;
+	}
+
+	/** Moves the clock to now and returns the items whose deadline it passed, oldest first. */
+	public synchronized List<T> advance(long now) {
+		List<T> due = new ArrayList<T>();
+		for(; tick <= now; tick++) {
+			int index = (int)(tick & (SLOTS - 1));
+			// level 0 wrapped around: bring down the next slot of level 1, and so on up
+			for(int level = 1; level < LEVELS && index == 0; level++) {
+				index = (int)((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+				Timer<T> sentinel = slots[level][index];
+				while(sentinel.next != sentinel) {
+					Timer<T> timer = sentinel.next;
+					unlink(timer);
+					place(timer);
+				}
+			}
+			Timer<T> sentinel = slots[0][(int)(tick & (SLOTS - 1))];
+			while(sentinel.next != sentinel) {
+				Timer<T> timer = sentinel.next;
+				unlink(timer);
+				size--;
+				due.add(timer.item);
+			}
+		}
+		return due;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private void place(Timer<T> timer) {
+		long at = Math.max(timer.deadline, tick);
+		long delta = at - tick;
+		if(delta >= RANGE) {
+			at = tick + RANGE - 1;
+			delta = RANGE - 1;
+		}
+		int level = 0;
+		while(delta >= 1L << (SLOT_BITS * (level + 1)))
+			level++;
+		Timer<T> sentinel = slots[level][(int)((at >>> (SLOT_BITS * level)) & (SLOTS - 1))];
+		timer.previous = sentinel.previous;
+		timer.next = sentinel;
+		sentinel.previous.next = timer;
+		sentinel.previous = timer;
+	}
+
+	private static <T> void unlink(Timer<T> timer) {
+		timer.previous.next = timer.next;
+		timer.next.previous = timer.previous;
+		timer.previous = null;
+		timer.next = null;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TimingWheel[timers=" + size + ", tick=" + tick + "]";
+	}
+}